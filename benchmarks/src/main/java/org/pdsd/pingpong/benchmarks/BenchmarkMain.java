@@ -0,0 +1,26 @@
+package org.pdsd.pingpong.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * Same as the JMH main, with the GC profiler always on, so every result comes with
+ * the bytes allocated per operation (gc.alloc.rate.norm).
+ *
+ * Takes the usual JMH arguments, e.g. "RoundTrip -p server=nio" or "-bm avgt PeerRegistry".
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,69 @@
+package org.pdsd.pingpong.network;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.pdsd.pingpong.platform.JvmPlatform;
+import org.pdsd.pingpong.platform.Platform;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * What the server spends on a request once it is read, without any I/O.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BuildResponseBenchmark {
+    private TCPServer server;
+    private String request;
+    private ByteBuffer frameRequest;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        Platform.install(new JvmPlatform(Platform.WARN));
+        server = new TCPServer(InetAddress.getByName("127.0.0.1"));
+        request = "Ping ";
+        frameRequest = Frames.encodeUtf8(request, BufferPool.shared());
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        BufferPool.shared().release(frameRequest);
+        server.kill();
+    }
+
+    @Benchmark
+    public String utf() {
+        return server.buildResponse(request);
+    }
+
+    /**
+     * Decoding the payload, building the response and encoding it into a pooled buffer.
+     */
+    @Benchmark
+    public void frame(Blackhole hole) {
+        ByteBuffer response = server.buildResponse(frameRequest.duplicate());
+        hole.consume(response.get(0));
+        BufferPool.shared().release(response);
+    }
+}
@@ -0,0 +1,115 @@
+package org.pdsd.pingpong.network;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pdsd.pingpong.platform.JvmPlatform;
+import org.pdsd.pingpong.platform.Platform;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * Client to server and back over loopback, for each way the client can talk:
+ * the UTF exchange on a fresh connection, frames over pooled connections and
+ * frames pipelined over a single connection.
+ *
+ * Run with -t to load the server from several client threads. Pipelined frames are
+ * answered by a pool of workers, so they can complete out of order.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+    private static final String REQUEST = "Ping ";
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        /**
+         * blocking: TCPServer, nio: NioTCPServer
+         */
+        @Param({"blocking", "nio"})
+        public String server;
+        /**
+         * inline: responses built by the thread that read the request,
+         * bounded: by the workers of RequestExecutor.standard()
+         */
+        @Param({"inline", "bounded"})
+        public String executor;
+
+        TCPServer instance;
+        InetAddress address;
+        int port;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            Platform.install(new JvmPlatform(Platform.WARN));
+            address = InetAddress.getByName("127.0.0.1");
+            instance = server.equals("nio") ? new NioTCPServer(address) : new TCPServer(address);
+            if (executor.equals("bounded"))
+                instance.setRequestExecutor(RequestExecutor.standard());
+            port = instance.listenPort();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            instance.kill();
+            ConnectionPool.shared().evictIdle();
+        }
+    }
+
+    /**
+     * Pipelining needs a server that reads ahead, one connection per client thread.
+     */
+    @State(Scope.Thread)
+    public static class Pipeline {
+        NioTCPServer server;
+        PipelinedConnection connection;
+
+        @Setup(Level.Trial)
+        public void open() throws IOException {
+            Platform.install(new JvmPlatform(Platform.WARN));
+            InetAddress address = InetAddress.getByName("127.0.0.1");
+            server = new NioTCPServer(address);
+            server.setRequestExecutor(RequestExecutor.standard());
+            connection = PipelinedConnection.open(address, server.listenPort());
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            connection.close();
+            server.kill();
+        }
+    }
+
+    @Benchmark
+    public String utf(Server server) throws IOException {
+        return TCPClient.sendTo(REQUEST, server.address, server.port);
+    }
+
+    @Benchmark
+    public String pooledFrame(Server server) throws IOException {
+        return TCPClient.sendFrame(REQUEST, server.address, server.port);
+    }
+
+    @Benchmark
+    public String pipelinedFrame(Pipeline pipeline) throws Exception {
+        return pipeline.connection.send(REQUEST).get();
+    }
+}
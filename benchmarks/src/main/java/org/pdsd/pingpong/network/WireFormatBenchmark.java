@@ -0,0 +1,102 @@
+package org.pdsd.pingpong.network;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * Cost of turning a message into bytes and back: the legacy writeUTF/readUTF
+ * exchange against the binary frame with pooled buffers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WireFormatBenchmark {
+    /**
+     * Characters in the message, 5 is the size of the ping itself.
+     */
+    @Param({"5", "1024"})
+    public int length;
+
+    private String message;
+    private ByteArrayOutputStream utfOut;
+    private byte[] utfEncoded;
+    private ByteBuffer header;
+    private ByteBuffer frameHeader;
+    private ByteBuffer framePayload;
+
+    @Setup(Level.Trial)
+    public void prepare() throws IOException {
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'p');
+        message = new String(chars);
+
+        utfOut = new ByteArrayOutputStream(length + 2);
+        new DataOutputStream(utfOut).writeUTF(message);
+        utfEncoded = utfOut.toByteArray();
+
+        header = ByteBuffer.allocateDirect(Frames.HEADER_LENGTH);
+        framePayload = Frames.encodeUtf8(message, BufferPool.shared());
+        frameHeader = ByteBuffer.allocate(Frames.HEADER_LENGTH);
+        Frames.putHeader(frameHeader, 0, framePayload.remaining());
+        frameHeader.flip();
+    }
+
+    @TearDown(Level.Trial)
+    public void release() {
+        BufferPool.shared().release(framePayload);
+    }
+
+    @Benchmark
+    public int utfWrite() throws IOException {
+        utfOut.reset();
+        new DataOutputStream(utfOut).writeUTF(message);
+        return utfOut.size();
+    }
+
+    @Benchmark
+    public String utfRead() throws IOException {
+        return new DataInputStream(new ByteArrayInputStream(utfEncoded)).readUTF();
+    }
+
+    @Benchmark
+    public void frameWrite(Blackhole hole) {
+        ByteBuffer payload = Frames.encodeUtf8(message, BufferPool.shared());
+        header.clear();
+        Frames.putHeader(header, 0, payload.remaining());
+        hole.consume(header.position());
+        BufferPool.shared().release(payload);
+    }
+
+    @Benchmark
+    public String frameRead() throws IOException {
+        Frames.payloadLength(frameHeader, 0);
+        return Frames.decodeUtf8(framePayload.duplicate());
+    }
+}
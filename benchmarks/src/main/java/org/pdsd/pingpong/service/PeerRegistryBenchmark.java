@@ -0,0 +1,119 @@
+package org.pdsd.pingpong.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.impl.ServiceInfoImpl;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger,  osmosis.7.radustoe@spamgourmet.com
+ *
+ * Peer registry operations for small, medium and very large networks.
+ * Run with -t to see how they hold up under concurrent readers and writers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeerRegistryBenchmark {
+    private static final String SERVICE_TYPE = "_pingpong._tcp.local.";
+
+    @State(Scope.Benchmark)
+    public static class Registry {
+        @Param({"10", "100", "10000"})
+        public int peers;
+
+        PeerRegistry registry;
+        ServiceInfo[] infos;
+        InetAddress[] addresses;
+
+        @Setup(Level.Trial)
+        public void fill() throws UnknownHostException {
+            registry = new PeerRegistry();
+            infos = new ServiceInfo[peers];
+            addresses = new InetAddress[peers];
+            for (int i = 0; i < peers; i++) {
+                addresses[i] = InetAddress.getByAddress(new byte[] {10, (byte) (i >> 16), (byte) (i >> 8), (byte) i});
+                infos[i] = peer("peer" + i, addresses[i]);
+                registry.put(infos[i]);
+            }
+        }
+    }
+
+    /**
+     * Each thread walks the peers on its own.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int next(int bound) {
+            next = next + 1 == bound ? 0 : next + 1;
+            return next;
+        }
+    }
+
+    private static ServiceInfo peer(String name, final InetAddress address) {
+        return new ServiceInfoImpl(SERVICE_TYPE, name, "", 4242, 0, 0, false, Collections.<String, Object>emptyMap()) {
+            @Override
+            public InetAddress[] getInetAddresses() {
+                return new InetAddress[] {address};
+            }
+        };
+    }
+
+    @Benchmark
+    public Peer getByName(Registry state, Cursor cursor) {
+        return state.registry.get(state.infos[cursor.next(state.peers)].getName());
+    }
+
+    @Benchmark
+    public Peer getByAddress(Registry state, Cursor cursor) {
+        return state.registry.getByAddress(state.addresses[cursor.next(state.peers)]);
+    }
+
+    /**
+     * A peer leaving and coming back.
+     */
+    @Benchmark
+    public Peer removeAndPut(Registry state, Cursor cursor) {
+        ServiceInfo info = state.infos[cursor.next(state.peers)];
+        state.registry.remove(info.getName());
+        return state.registry.put(info);
+    }
+
+    /**
+     * Listing the peers when nothing changed since the last time.
+     */
+    @Benchmark
+    public List<ServiceInfo> snapshot(Registry state) {
+        return state.registry.snapshot().infos();
+    }
+
+    /**
+     * Listing the peers right after a peer was seen again, the worst case.
+     */
+    @Benchmark
+    public List<ServiceInfo> putThenSnapshot(Registry state, Cursor cursor) {
+        state.registry.put(state.infos[cursor.next(state.peers)]);
+        return state.registry.snapshot().infos();
+    }
+}
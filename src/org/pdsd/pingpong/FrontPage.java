@@ -10,20 +10,28 @@ import android.view.ViewGroup;
 import android.widget.*;
 import org.pdsd.pingpong.network.AndroidWiFiTCPServer;
 import org.pdsd.pingpong.service.AndroidDNSSetupHooks;
+import org.pdsd.pingpong.service.AndroidWiFiEndpoints;
+import org.pdsd.pingpong.platform.AndroidPlatform;
+import org.pdsd.pingpong.platform.Platform;
 import org.pdsd.pingpong.service.NetworkService;
+import org.pdsd.pingpong.service.PeerCache;
+import org.pdsd.pingpong.service.PeerChanges;
 
 import javax.jmdns.ServiceInfo;
+import java.io.File;
 import java.net.UnknownServiceException;
 import java.util.LinkedList;
 
 public class FrontPage extends Activity {
     private static final String LOG_TAG = "Fr Page";
+    private static final String PEER_CACHE_FILE = "peers.cache";
     private NetworkService service;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main);
+        Platform.install(new AndroidPlatform());
 
         Button update = (Button) findViewById(R.id.ok_button);
 
@@ -47,7 +55,13 @@ public class FrontPage extends Activity {
             protected NetworkService doInBackground(String... strings) {
                 AndroidDNSSetupHooks hooks = new AndroidDNSSetupHooks(FrontPage.this);
                 try {
-                    return new NetworkService(null, AndroidWiFiTCPServer.build(FrontPage.this), hooks, hooks);
+                    NetworkService started = new NetworkService(null,
+                            AndroidWiFiTCPServer.buildNonBlocking(FrontPage.this), hooks, hooks);
+//                    Reach the peers from last time while mDNS looks for them again
+                    started.warmStart(new PeerCache(new File(getFilesDir(), PEER_CACHE_FILE)));
+//                    Move along when DHCP or roaming changes the address
+                    started.watchAddress(new AndroidWiFiEndpoints(FrontPage.this));
+                    return started;
                 } catch (UnknownServiceException e) {
                     Log.e(LOG_TAG, e.getMessage());
                     return null;
@@ -63,20 +77,25 @@ public class FrontPage extends Activity {
                                 android.R.layout.simple_list_item_1,
                                 new LinkedList<String>());
                 peerList.setAdapter(adapter);
-                service.setOnNewServiceCallback(new NetworkService.ServiceEventHandler() {
+//                One redraw per batch of changes, however many peers show up at once
+                service.setOnPeersChangedCallback(new NetworkService.PeerChangeHandler() {
                     @Override
-                    public void handle(ServiceInfo si) {
-                        adapter.add(si.getName());
-                        adapter.notifyDataSetChanged();
-                    }
-                });
-                service.setOnServiceRemovedCallback(new NetworkService.ServiceEventHandler() {
-                    @Override
-                    public void handle(ServiceInfo si) {
-                        adapter.remove(si.getName());
-                        adapter.notifyDataSetChanged();
+                    public void handle(PeerChanges changes) {
+                        for (ServiceInfo si : changes.removed) {
+                            adapter.remove(si.getName());
+                        }
+                        for (ServiceInfo si : changes.added) {
+                            adapter.add(si.getName());
+                        }
+                        if (!changes.added.isEmpty() || !changes.removed.isEmpty())
+                            adapter.notifyDataSetChanged();
                     }
                 });
+//                Peers that answered before the callbacks were set
+                for (ServiceInfo si : service.getPeers()) {
+                    adapter.add(si.getName());
+                }
+                adapter.notifyDataSetChanged();
             }
         }.execute();
     }
@@ -0,0 +1,194 @@
+package org.pdsd.pingpong.headless;
+
+import org.pdsd.pingpong.network.LatencyHistogram;
+import org.pdsd.pingpong.network.NioTCPServer;
+import org.pdsd.pingpong.network.RequestExecutor;
+import org.pdsd.pingpong.network.ResponseFuture;
+import org.pdsd.pingpong.platform.JvmPlatform;
+import org.pdsd.pingpong.platform.Platform;
+import org.pdsd.pingpong.service.NetworkService;
+import org.pdsd.pingpong.service.PingReport;
+
+import javax.jmdns.ServiceInfo;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * Runs many pingpong nodes in one JVM, without Android, and reports how fast they
+ * find each other and how many pings per second they sustain.
+ *
+ * Usage: NodeLauncher [nodes] [seconds] [address] [-v]
+ *
+ * Every node has its own server and JmDNS instance bound to the given address,
+ * 127.0.0.1 by default, so the loopback interface must accept multicast. Once a
+ * second every node pings all the peers it knows.
+ */
+public class NodeLauncher {
+    private static final String LOG_TAG = "Node Launcher";
+
+    private static final int DEFAULT_NODES = 10;
+    private static final int DEFAULT_SECONDS = 30;
+    private static final long ROUND_MS = 1000;
+    private static final int STARTUP_THREADS = 64;
+
+    /**
+     * Nothing to set up outside Android.
+     */
+    static class NoHooks implements NetworkService.ServiceSetupHook, NetworkService.ServiceTeardownHook {
+        @Override
+        public boolean setup() {
+            return true;
+        }
+
+        @Override
+        public boolean teardown() {
+            return true;
+        }
+    }
+
+    private static class Node {
+        final NetworkService service;
+        volatile long convergedNanos = -1;
+
+        Node(NetworkService service) {
+            this.service = service;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_NODES;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SECONDS;
+        InetAddress address = InetAddress.getByName(args.length > 2 ? args[2] : "127.0.0.1");
+        boolean verbose = args.length > 3 && args[3].equals("-v");
+        Platform.install(new JvmPlatform(verbose ? Platform.DEBUG : Platform.WARN));
+
+        final long started = System.nanoTime();
+        final int expected = nodes - 1;
+        final InetAddress bindAddress = address;
+        final NoHooks hooks = new NoHooks();
+//        Registering with JmDNS blocks for a few seconds while the name is probed, start and stop the nodes together
+        ExecutorService lifecycle = Executors.newFixedThreadPool(Math.min(nodes, STARTUP_THREADS));
+        List<Future<Node>> starting = new ArrayList<Future<Node>>(nodes);
+        for (int i = 0; i < nodes; i++) {
+            final String id = "node" + i + "-";
+            starting.add(lifecycle.submit(new Callable<Node>() {
+                @Override
+                public Node call() throws Exception {
+                    return start(id, bindAddress, hooks, expected, started);
+                }
+            }));
+        }
+        List<Node> running = new ArrayList<Node>(nodes);
+        for (Future<Node> node : starting) {
+            running.add(node.get());
+        }
+        System.out.println(nodes + " nodes started on " + address.getHostAddress() + " in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + "ms");
+
+        long pings = 0, answered = 0, failed = 0, timedOut = 0;
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        while (System.nanoTime() < end) {
+            long roundStart = System.nanoTime();
+            List<ResponseFuture<PingReport>> round = new ArrayList<ResponseFuture<PingReport>>(nodes);
+            for (Node node : running) {
+                checkConverged(node, expected, started);
+                round.add(node.service.pingAll(NetworkService.DEFAULT_PING_PARALLELISM, ROUND_MS));
+            }
+            long roundAnswered = 0, roundTotal = 0;
+            for (ResponseFuture<PingReport> future : round) {
+                try {
+                    PingReport report = future.get();
+                    roundTotal += report.total();
+                    roundAnswered += report.successes();
+                    failed += report.failures.size();
+                    timedOut += report.timedOut.size();
+                } catch (ExecutionException e) {
+                    System.err.println(LOG_TAG + ": broadcast failed " + e.getCause());
+                }
+            }
+            pings += roundTotal;
+            answered += roundAnswered;
+            long roundNanos = System.nanoTime() - roundStart;
+            System.out.println(String.format("t=%ds converged=%d/%d pings=%d answered=%d %.0f pings/s",
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started), converged(running), nodes,
+                    roundTotal, roundAnswered, roundTotal * 1e9 / Math.max(1, roundNanos)));
+            long sleep = ROUND_MS - TimeUnit.NANOSECONDS.toMillis(roundNanos);
+            if (sleep > 0)
+                Thread.sleep(sleep);
+        }
+
+        LatencyHistogram latency = new LatencyHistogram();
+        LatencyHistogram convergence = new LatencyHistogram();
+        for (Node node : running) {
+            latency.add(node.service.getLatency());
+            if (node.convergedNanos >= 0)
+                convergence.record(node.convergedNanos);
+        }
+        System.out.println("Converged: " + converged(running) + "/" + nodes + " nodes, " + convergence);
+        System.out.println("Pings: " + pings + " sent, " + answered + " answered, " + failed + " failed, "
+                + timedOut + " timed out");
+        System.out.println("Round trip: " + latency);
+
+        for (final Node node : running) {
+            lifecycle.execute(new Runnable() {
+                @Override
+                public void run() {
+                    stop(node.service);
+                }
+            });
+        }
+        lifecycle.shutdown();
+        lifecycle.awaitTermination(1, TimeUnit.MINUTES);
+        System.exit(0);
+    }
+
+    private static Node start(String id, InetAddress address, NoHooks hooks, final int expected,
+                              final long started) throws IOException {
+        NioTCPServer server = new NioTCPServer(address);
+        server.setRequestExecutor(RequestExecutor.standard());
+        final Node node = new Node(new NetworkService(id, server, hooks, hooks));
+        node.service.setOnNewServiceCallback(new NetworkService.ServiceEventHandler() {
+            @Override
+            public void handle(ServiceInfo si) {
+                checkConverged(node, expected, started);
+            }
+        });
+        return node;
+    }
+
+    /**
+     * Also called once a round, peers that answered before the callback was set do not trigger it.
+     */
+    private static void checkConverged(Node node, int expected, long started) {
+        if (node.convergedNanos < 0 && node.service.getPeerRegistry().size() >= expected)
+            node.convergedNanos = System.nanoTime() - started;
+    }
+
+    private static int converged(List<Node> nodes) {
+        int converged = 0;
+        for (Node node : nodes) {
+            if (node.convergedNanos >= 0)
+                converged++;
+        }
+        return converged;
+    }
+
+    private static void stop(NetworkService service) {
+        try {
+            service.stop();
+        } catch (RuntimeException e) {
+            System.err.println(LOG_TAG + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package org.pdsd.pingpong.headless;
+
+import org.pdsd.pingpong.platform.Log;
+import org.pdsd.pingpong.service.AddressedServiceInfo;
+import org.pdsd.pingpong.service.Discovery;
+
+import javax.jmdns.ServiceInfo;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * Stand-in for multicast DNS shared by many nodes of one process. Every announcement
+ * and withdrawal reaches each watching node after latencyMs, give or take jitterMs,
+ * and is lost with probability lossRate. A lost announcement is sent again after
+ * retryMs, doubling up to MAX_RETRY_MS, the way mDNS queriers back off.
+ *
+ * Retries stand for the queries of the receiving member, which stops sending them for
+ * the services it learned from its peers.
+ *
+ * Members join paused, so their owner can finish setting up before events arrive.
+ */
+public class SimulatedSwarm {
+    private static final String LOG_TAG = "Simulated Swarm";
+
+    private static final long MAX_RETRY_MS = 60000;
+    private static final int NETWORK_THREADS = 4;
+
+    private final long latencyMs;
+    private final long jitterMs;
+    private final double lossRate;
+    private final long retryMs;
+    private final Random random;
+
+    private final ScheduledExecutorService network;
+    /**
+     * Services currently advertised, by type and name.
+     */
+    private final ConcurrentMap<String, Advertised> services = new ConcurrentHashMap<String, Advertised>();
+    private final List<Member> members = new CopyOnWriteArrayList<Member>();
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+
+    private static class Advertised {
+        final ServiceInfo info;
+        final Member owner;
+
+        Advertised(ServiceInfo info, Member owner) {
+            this.info = info;
+            this.owner = owner;
+        }
+    }
+
+    private static class Watch {
+        final String type;
+        final Discovery.Listener listener;
+
+        Watch(String type, Discovery.Listener listener) {
+            this.type = type;
+            this.listener = listener;
+        }
+    }
+
+    public SimulatedSwarm(long latencyMs, long jitterMs, double lossRate, long retryMs, long seed) {
+        this.latencyMs = latencyMs;
+        this.jitterMs = jitterMs;
+        this.lossRate = lossRate;
+        this.retryMs = Math.max(1, retryMs);
+        this.random = new Random(seed);
+        network = Executors.newScheduledThreadPool(NETWORK_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "SimulatedSwarm");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param address Address the member's services are advertised with.
+     * @return Discovery for one node, paused until release() is called.
+     */
+    public Member join(InetAddress address) {
+        Member member = new Member(address);
+        members.add(member);
+        return member;
+    }
+
+    /**
+     * @return Events that reached a node.
+     */
+    public long delivered() {
+        return delivered.get();
+    }
+
+    /**
+     * @return Deliveries dropped, each one was attempted again later.
+     */
+    public long lost() {
+        return lost.get();
+    }
+
+    /**
+     * @return Retries not sent because the member had learned the service from its peers.
+     */
+    public long suppressed() {
+        return suppressed.get();
+    }
+
+    public void shutdown() {
+        network.shutdownNow();
+    }
+
+    private static String key(ServiceInfo info) {
+        return info.getType() + "/" + info.getName();
+    }
+
+    private long delay() {
+        if (jitterMs <= 0)
+            return latencyMs;
+        return Math.max(0, latencyMs - jitterMs + (long) (random.nextDouble() * 2 * jitterMs));
+    }
+
+    /**
+     * Announces a service to one watcher, over and over until it gets through
+     * or the service is withdrawn.
+     */
+    private void announce(final Member to, final Watch watch, final Advertised service, final long afterMs,
+                          final long backoffMs) {
+        network.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (to.closed || services.get(key(service.info)) != service)
+                    return;
+//                Retries stand for the member's queries, which it no longer sends
+                if (afterMs > 0 && to.learned.contains(key(service.info))) {
+                    suppressed.incrementAndGet();
+                    return;
+                }
+                if (random.nextDouble() < lossRate) {
+                    lost.incrementAndGet();
+                    announce(to, watch, service, backoffMs, Math.min(MAX_RETRY_MS, backoffMs * 2));
+                    return;
+                }
+                to.deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        watch.listener.serviceAdded(service.info.getName());
+                        watch.listener.serviceResolved(service.info);
+                    }
+                });
+            }
+        }, afterMs + delay(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Withdrawals are sent once, a lost one lingers until the record expires, which
+     * is simulated as one retry interval later.
+     */
+    private void withdraw(final Member to, final Watch watch, final ServiceInfo info) {
+        long lossDelay = random.nextDouble() < lossRate ? retryMs : 0;
+        if (lossDelay > 0)
+            lost.incrementAndGet();
+        network.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (to.closed)
+                    return;
+                to.deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        watch.listener.serviceRemoved(info);
+                    }
+                });
+            }
+        }, delay() + lossDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * One node of the swarm.
+     */
+    public class Member implements Discovery {
+        private final InetAddress address;
+        private final List<Watch> watches = new CopyOnWriteArrayList<Watch>();
+        private final List<ServiceInfo> registered = new CopyOnWriteArrayList<ServiceInfo>();
+        private final Set<String> learned = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        /**
+         * Events that arrived while paused, guarded by the member.
+         */
+        private List<Runnable> held = new ArrayList<Runnable>();
+        private volatile long firstEventNanos = -1;
+        volatile boolean closed;
+
+        Member(InetAddress address) {
+            this.address = address;
+        }
+
+        /**
+         * Delivers the events held so far and the later ones as they arrive.
+         */
+        public void release() {
+            List<Runnable> pending;
+            synchronized (this) {
+                pending = held;
+                held = null;
+            }
+            for (Runnable event : pending) {
+                run(event);
+            }
+        }
+
+        /**
+         * @return When the first event reached the node, per System.nanoTime(), -1 if none did yet.
+         */
+        public long firstEventNanos() {
+            return firstEventNanos;
+        }
+
+        void deliver(Runnable event) {
+            synchronized (this) {
+                if (held != null) {
+                    held.add(event);
+                    return;
+                }
+            }
+            run(event);
+        }
+
+        private void run(Runnable event) {
+            if (closed)
+                return;
+            if (firstEventNanos < 0)
+                firstEventNanos = System.nanoTime();
+            delivered.incrementAndGet();
+            try {
+                event.run();
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Listener failed: " + e);
+            }
+        }
+
+        @Override
+        public void register(ServiceInfo info) {
+            Advertised service = new Advertised(AddressedServiceInfo.of(info, address), this);
+            services.put(key(info), service);
+            registered.add(info);
+            announceToAll(service);
+        }
+
+        @Override
+        public void updateText(ServiceInfo info, Map<String, String> text) {
+            info.setText(text);
+            Advertised previous = services.get(key(info));
+            if (previous == null || previous.owner != this)
+                return;
+//            Announcements of the previous text still in flight give up once it is replaced
+            Advertised service = new Advertised(AddressedServiceInfo.of(info, address), this);
+            if (services.replace(key(info), previous, service))
+                announceToAll(service);
+        }
+
+        private void announceToAll(Advertised service) {
+            for (Member member : members) {
+                for (Watch watch : member.watches) {
+                    if (watch.type.equals(service.info.getType()))
+                        announce(member, watch, service, 0, retryMs);
+                }
+            }
+        }
+
+        @Override
+        public void unregister(ServiceInfo info) {
+            Advertised service = services.get(key(info));
+            if (service == null || service.owner != this || !services.remove(key(info), service))
+                return;
+            registered.remove(info);
+            for (Member member : members) {
+                for (Watch watch : member.watches) {
+                    if (watch.type.equals(info.getType()))
+                        withdraw(member, watch, service.info);
+                }
+            }
+        }
+
+        @Override
+        public void learned(String type, String name) {
+            learned.add(type + "/" + name);
+        }
+
+        @Override
+        public void watch(String type, Listener listener) {
+            Watch watch = new Watch(type, listener);
+            watches.add(watch);
+            for (Advertised service : services.values()) {
+                if (service.info.getType().equals(type))
+                    announce(this, watch, service, 0, retryMs);
+            }
+        }
+
+        @Override
+        public void close() {
+            for (ServiceInfo info : registered) {
+                unregister(info);
+            }
+            closed = true;
+            members.remove(this);
+        }
+    }
+}
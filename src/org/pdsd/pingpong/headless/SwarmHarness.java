@@ -0,0 +1,200 @@
+package org.pdsd.pingpong.headless;
+
+import org.pdsd.pingpong.network.LatencyHistogram;
+import org.pdsd.pingpong.network.NioTCPServer;
+import org.pdsd.pingpong.network.RequestExecutor;
+import org.pdsd.pingpong.platform.JvmPlatform;
+import org.pdsd.pingpong.platform.Platform;
+import org.pdsd.pingpong.service.NetworkService;
+import org.pdsd.pingpong.service.Peer;
+
+import javax.jmdns.ServiceInfo;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * Runs a swarm of NetworkService nodes over a SimulatedSwarm instead of multicast DNS,
+ * each with a real server on loopback, and reports:
+ * - how long until every node has pinged every other one (full convergence),
+ * - per node, the time from its first discovery event to its first answered ping,
+ * - the heap taken by a node and by each peer it knows,
+ * - with churn, how complete and how stale the views are while nodes come and go,
+ *   and how long they take to converge again once it stops.
+ *
+ * Usage: SwarmHarness [nodes] [churn per second] [churn seconds] [latency ms] [loss rate]
+ */
+public class SwarmHarness {
+    private static final long CONVERGENCE_TIMEOUT_MS = 120000;
+    private static final long POLL_MS = 5;
+    private static final long RETRY_MS = 1000;
+
+    private static final NodeLauncher.NoHooks HOOKS = new NodeLauncher.NoHooks();
+
+    private static class Node {
+        final NetworkService service;
+        final SimulatedSwarm.Member member;
+        volatile long firstPingNanos = -1;
+
+        Node(NetworkService service, SimulatedSwarm.Member member) {
+            this.service = service;
+            this.member = member;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int churn = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        int churnSeconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        long latencyMs = args.length > 3 ? Long.parseLong(args[3]) : 5;
+        double loss = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+        Platform.install(new JvmPlatform(Platform.WARN));
+
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        SimulatedSwarm swarm = new SimulatedSwarm(latencyMs, latencyMs / 2, loss, RETRY_MS, 42);
+        System.out.println(String.format("%d nodes, latency %dms, loss %.1f%%, churn %d/s for %ds",
+                nodes, latencyMs, loss * 100, churn, churnSeconds));
+
+        long baseline = usedHeap();
+        List<Node> live = new ArrayList<Node>(nodes);
+        for (int i = 0; i < nodes; i++) {
+            live.add(start(swarm, loopback, "node" + i + "-"));
+        }
+        long started = usedHeap();
+        System.out.println(String.format("Heap per node: %d KB", (started - baseline) / nodes / 1024));
+
+        long t0 = System.nanoTime();
+        for (Node node : live) {
+            node.member.release();
+        }
+        long converged = awaitConvergence(live, t0);
+        report("Converged", converged);
+
+        LatencyHistogram firstPing = new LatencyHistogram();
+        for (Node node : live) {
+            if (node.firstPingNanos >= 0 && node.member.firstEventNanos() >= 0)
+                firstPing.record(node.firstPingNanos - node.member.firstEventNanos());
+        }
+        System.out.println("First event to first ping: " + firstPing);
+        long known = (long) nodes * (nodes - 1);
+        if (converged >= 0 && known > 0)
+            System.out.println(String.format("Heap per known peer: %d bytes", (usedHeap() - started) / known));
+
+        if (churn > 0) {
+            Random random = new Random(7);
+            int generation = 0;
+            for (int second = 1; second <= churnSeconds; second++) {
+                long tick = System.nanoTime();
+                for (int i = 0; i < churn && !live.isEmpty(); i++) {
+                    Node leaving = live.remove(random.nextInt(live.size()));
+                    leaving.service.stop();
+                    Node joining = start(swarm, loopback, "churn" + generation++ + "-");
+                    joining.member.release();
+                    live.add(joining);
+                }
+                long sleep = TimeUnit.SECONDS.toMillis(1) - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - tick);
+                if (sleep > 0)
+                    Thread.sleep(sleep);
+                View view = view(live);
+                System.out.println(String.format("t=%ds views %.1f%% complete, %d stale entries",
+                        second, view.completeness() * 100, view.stale));
+            }
+            report("Converged again after churn", awaitConvergence(live, System.nanoTime()));
+        }
+        System.out.println("Discovery events: " + swarm.delivered() + " delivered, " + swarm.lost() + " lost");
+
+        for (Node node : live) {
+            node.service.stop();
+        }
+        swarm.shutdown();
+        System.exit(0);
+    }
+
+    private static Node start(SimulatedSwarm swarm, InetAddress address, String prefix) throws IOException {
+        SimulatedSwarm.Member member = swarm.join(address);
+        NioTCPServer server = new NioTCPServer(address);
+        server.setRequestExecutor(RequestExecutor.standard());
+        NetworkService service = new NetworkService(prefix, server, member, HOOKS, HOOKS);
+        final Node node = new Node(service, member);
+        service.setOnNewServiceCallback(new NetworkService.ServiceEventHandler() {
+            @Override
+            public void handle(ServiceInfo si) {
+                if (node.firstPingNanos < 0)
+                    node.firstPingNanos = System.nanoTime();
+            }
+        });
+        return node;
+    }
+
+    /**
+     * How well the nodes know each other: peers known out of those alive, and known ones that left.
+     */
+    private static class View {
+        long known;
+        long expected;
+        long stale;
+
+        double completeness() {
+            return expected == 0 ? 1 : (double) known / expected;
+        }
+
+        boolean converged() {
+            return known == expected && stale == 0;
+        }
+    }
+
+    private static View view(List<Node> live) {
+        Set<String> names = new HashSet<String>();
+        for (Node node : live) {
+            names.add(node.service.getId());
+        }
+        View view = new View();
+        for (Node node : live) {
+            view.expected += live.size() - 1;
+            for (Peer peer : node.service.getPeerRegistry().snapshot().peers) {
+                if (names.contains(peer.getName()))
+                    view.known++;
+                else
+                    view.stale++;
+            }
+        }
+        return view;
+    }
+
+    /**
+     * @return Nanoseconds from since until every view is complete and up to date, -1 on timeout.
+     */
+    private static long awaitConvergence(List<Node> live, long since) throws InterruptedException {
+        long deadline = since + TimeUnit.MILLISECONDS.toNanos(CONVERGENCE_TIMEOUT_MS);
+        while (System.nanoTime() < deadline) {
+            if (view(live).converged())
+                return System.nanoTime() - since;
+            Thread.sleep(POLL_MS);
+        }
+        return -1;
+    }
+
+    private static void report(String what, long nanos) {
+        if (nanos < 0)
+            System.out.println(what + ": not within " + CONVERGENCE_TIMEOUT_MS + "ms");
+        else
+            System.out.println(what + " in " + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms");
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
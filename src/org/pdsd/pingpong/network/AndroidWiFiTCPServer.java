@@ -20,27 +20,52 @@ public class AndroidWiFiTCPServer extends TCPServer {
     }
 
     public static AndroidWiFiTCPServer build(Context androidContext) {
+        try {
+//                Start the server
+            return new AndroidWiFiTCPServer(wifiAddress(androidContext));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error starting serviceServer " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Same as build(), but the server multiplexes its clients with a selector instead of
+     * serving them one by one.
+     */
+    public static NioTCPServer buildNonBlocking(Context androidContext) {
+        try {
+            NioTCPServer server = new NioTCPServer(wifiAddress(androidContext));
+            server.setRequestExecutor(RequestExecutor.standard());
+            return server;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error starting serviceServer " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static InetAddress wifiAddress(Context androidContext) throws IOException {
+        InetAddress deviceIpAddress = currentWifiAddress(androidContext);
+        if (deviceIpAddress == null)
+            throw new IOException("No IP address can be found");
+        Log.i(LOG_TAG, "My address is " + deviceIpAddress.getHostAddress());
+        return deviceIpAddress;
+    }
+
+    /**
+     * @return The device's address inside the WiFi network, null while it has none.
+     */
+    public static InetAddress currentWifiAddress(Context androidContext) throws IOException {
         /**
          * We need to know our identity inside the local WiFi network.
          */
         WifiManager wifi = (android.net.wifi.WifiManager)
                 androidContext.getSystemService(android.content.Context.WIFI_SERVICE);
-        InetAddress deviceIpAddress;
 
-        try {
-//                Get the IP the server will be bound to.
-            deviceIpAddress = InetAddress.getByAddress(
-                    ByteBuffer.allocate(4).putInt(
-                            Integer.reverseBytes(wifi.getConnectionInfo().getIpAddress())).array());
-
-            if (deviceIpAddress == null)
-                throw new IOException("No IP address can be found");
-            Log.i(LOG_TAG, "My address is " + deviceIpAddress.getHostAddress());
-//                Start the server
-            return new AndroidWiFiTCPServer(deviceIpAddress);
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Error starting serviceServer " + e.getMessage());
+//                Get the IP the server will be bound to, 0 while not connected
+        int ip = wifi.getConnectionInfo().getIpAddress();
+        if (ip == 0)
             return null;
-        }
+        return InetAddress.getByAddress(ByteBuffer.allocate(4).putInt(Integer.reverseBytes(ip)).array());
     }
 }
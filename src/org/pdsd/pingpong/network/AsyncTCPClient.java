@@ -0,0 +1,619 @@
+package org.pdsd.pingpong.network;
+
+import org.pdsd.pingpong.platform.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * Non-blocking counterpart of {@link TCPClient}. Requests return a future right
+ * away, all of them are driven by a single selector thread, so a peer that does not
+ * answer only fails its own request when its deadline passes.
+ *
+ * A host reachable at several addresses is connected to Happy Eyeballs style (RFC 8305):
+ * the addresses are tried in turn, the next one CONNECTION_ATTEMPT_DELAY_MS after the
+ * previous one or as soon as it failed, while the earlier attempts keep going. The first
+ * connection established carries the request, the others are abandoned.
+ *
+ * Listeners of the returned futures run on the selector thread, they should only
+ * hand the result over to somewhere else.
+ */
+public class AsyncTCPClient {
+    private static final String LOG_TAG = "Async TCP Client";
+
+    /**
+     * Deadline used by callers that have no better idea, covers connecting and the response.
+     */
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+    /**
+     * How long an address gets to connect before the next one is tried alongside it.
+     */
+    public static final long CONNECTION_ATTEMPT_DELAY_MS = 250;
+
+    private static AsyncTCPClient shared;
+
+    private final Selector selector;
+    private final BufferPool buffers;
+    /**
+     * Work handed over by other threads, it has to run on the selector thread.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    /**
+     * Requests in progress by deadline, only touched on the selector thread.
+     */
+    private final PriorityQueue<Exchange<?>> deadlines = new PriorityQueue<Exchange<?>>(64,
+            new Comparator<Exchange<?>>() {
+                @Override
+                public int compare(Exchange<?> first, Exchange<?> second) {
+                    return first.deadline < second.deadline ? -1 : (first.deadline == second.deadline ? 0 : 1);
+                }
+            });
+    /**
+     * Addresses to try next, by due time, only touched on the selector thread.
+     */
+    private final PriorityQueue<NextAttempt> attempts = new PriorityQueue<NextAttempt>(16,
+            new Comparator<NextAttempt>() {
+                @Override
+                public int compare(NextAttempt first, NextAttempt second) {
+                    return first.due < second.due ? -1 : (first.due == second.due ? 0 : 1);
+                }
+            });
+    private volatile Thread thread;
+    private volatile boolean alive = true;
+
+    public AsyncTCPClient(BufferPool buffers) throws IOException {
+        this.buffers = buffers;
+        selector = Selector.open();
+        Thread loop = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "AsyncTCPClient-loop");
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    /**
+     * @return Client shared by this process, its selector thread is started on first use.
+     */
+    public static synchronized AsyncTCPClient shared() {
+        if (shared == null) {
+            try {
+                shared = new AsyncTCPClient(BufferPool.shared());
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot open a selector: " + e.getMessage());
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Same exchange as TCPClient.sendTo(), a UTF string each way.
+     * @param str Request
+     * @param destination IP address
+     * @param port Port
+     * @param timeoutMs The future fails if the response is not in by then, counting from now.
+     * @return Future response from the other host.
+     */
+    public ResponseFuture<String> sendTo(String str, InetAddress destination, int port, long timeoutMs) {
+        return sendTo(str, new InetAddress[] { destination }, port, timeoutMs, null);
+    }
+
+    /**
+     * Same as sendTo(), to a host reachable at several addresses.
+     * @param destinations Addresses of the host, in order of preference.
+     * @param connected Completed with the address connected to, failed if none was. May be null.
+     */
+    public ResponseFuture<String> sendTo(String str, InetAddress[] destinations, int port, long timeoutMs,
+                                         ResponseFuture<InetAddress> connected) {
+        ResponseFuture<String> response = new ResponseFuture<String>();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(2 + str.length());
+        try {
+            new DataOutputStream(encoded).writeUTF(str);
+        } catch (IOException e) {
+            response.fail(e);
+            return response;
+        }
+        start(new UtfExchange(response, ByteBuffer.wrap(encoded.toByteArray())), destinations, port, timeoutMs,
+                connected);
+        return response;
+    }
+
+    /**
+     * Same exchange as TCPClient.sendFrame(), on a connection of its own.
+     * @return Future response from the other host.
+     */
+    public ResponseFuture<String> sendFrame(String str, InetAddress destination, int port, long timeoutMs) {
+        return sendFrame(str, new InetAddress[] { destination }, port, timeoutMs, null);
+    }
+
+    /**
+     * Same as sendFrame(), to a host reachable at several addresses.
+     * @param destinations Addresses of the host, in order of preference.
+     * @param connected Completed with the address connected to, failed if none was. May be null.
+     */
+    public ResponseFuture<String> sendFrame(String str, InetAddress[] destinations, int port, long timeoutMs,
+                                            ResponseFuture<InetAddress> connected) {
+        final ResponseFuture<String> text = new ResponseFuture<String>();
+        final ResponseFuture<ByteBuffer> raw = exchange(Frames.encodeUtf8(str, buffers), true,
+                destinations, port, timeoutMs, connected);
+        raw.addListener(new ResponseFuture.Listener<ByteBuffer>() {
+            @Override
+            public void done(ResponseFuture<ByteBuffer> future) {
+                ByteBuffer response = future.getNow();
+                if (response != null) {
+                    text.complete(Frames.decodeUtf8(response));
+                    buffers.release(response);
+                } else {
+                    text.fail(future.getFailure());
+                }
+            }
+        });
+//        Cancelling the text cancels the exchange
+        text.addListener(new ResponseFuture.Listener<String>() {
+            @Override
+            public void done(ResponseFuture<String> future) {
+                if (future.isCancelled())
+                    raw.cancel(true);
+            }
+        });
+        return text;
+    }
+
+    /**
+     * Sends a binary frame and waits for the response frame, without blocking.
+     * @param payload Request, it must stay untouched until the future is done.
+     * @return Future response payload, in a pooled buffer. Release it when done.
+     */
+    public ResponseFuture<ByteBuffer> exchange(ByteBuffer payload, InetAddress destination, int port, long timeoutMs) {
+        return exchange(payload, false, new InetAddress[] { destination }, port, timeoutMs, null);
+    }
+
+    /**
+     * @param ownsPayload The payload is pooled and released once the socket is closed,
+     *                    which may be after the future is done.
+     */
+    private ResponseFuture<ByteBuffer> exchange(ByteBuffer payload, boolean ownsPayload, InetAddress[] destinations,
+                                                int port, long timeoutMs, ResponseFuture<InetAddress> connected) {
+        ResponseFuture<ByteBuffer> response = new ResponseFuture<ByteBuffer>();
+        ByteBuffer header = ByteBuffer.allocate(Frames.HEADER_LENGTH);
+        Frames.putHeader(header, 0, payload.remaining());
+        header.flip();
+        start(new FrameExchange(response, header, payload, ownsPayload ? payload : null), destinations, port,
+                timeoutMs, connected);
+        return response;
+    }
+
+    /**
+     * Orders addresses for racing: IPv6 and IPv4 alternate, IPv6 first if there is any,
+     * so a family that is broken altogether only delays the connection by one attempt.
+     * @return The addresses, each family keeping its own order.
+     */
+    public static InetAddress[] interleaveFamilies(InetAddress[] addresses) {
+        List<InetAddress> v6 = new ArrayList<InetAddress>();
+        List<InetAddress> v4 = new ArrayList<InetAddress>();
+        for (InetAddress address : addresses) {
+            (address instanceof Inet6Address ? v6 : v4).add(address);
+        }
+        InetAddress[] ordered = new InetAddress[addresses.length];
+        int i = 0;
+        for (int j = 0; j < Math.max(v6.size(), v4.size()); j++) {
+            if (j < v6.size())
+                ordered[i++] = v6.get(j);
+            if (j < v4.size())
+                ordered[i++] = v4.get(j);
+        }
+        return ordered;
+    }
+
+    /**
+     * Stops the selector thread, requests in progress fail.
+     */
+    public void close() {
+        alive = false;
+        selector.wakeup();
+    }
+
+    private <V> void start(final Exchange<V> exchange, InetAddress[] destinations, int port, long timeoutMs,
+                           ResponseFuture<InetAddress> connected) {
+        exchange.deadline = System.currentTimeMillis() + timeoutMs;
+        exchange.timeoutMs = timeoutMs;
+        exchange.candidates = destinations;
+        exchange.port = port;
+        exchange.connected = connected;
+        if (destinations.length == 0) {
+            exchange.fail(new IOException("No address to connect to"));
+            return;
+        }
+        exchange.address = new InetSocketAddress(destinations[0], port);
+
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (exchange.future.isDone()) {
+                    exchange.close();
+                    return;
+                }
+                deadlines.add(exchange);
+                exchange.attempt();
+            }
+        });
+        exchange.future.addListener(new ResponseFuture.Listener<V>() {
+            @Override
+            public void done(ResponseFuture<V> future) {
+//                Completed, failed or cancelled from outside, the socket is not needed anymore
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        exchange.close();
+                    }
+                });
+            }
+        });
+    }
+
+    private void post(Runnable task) {
+        if (Thread.currentThread() == thread) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    private void loop() {
+        thread = Thread.currentThread();
+        try {
+            while (alive) {
+                Exchange<?> next = deadlines.peek();
+                NextAttempt attempt = attempts.peek();
+                long due = Math.min(next == null ? Long.MAX_VALUE : next.deadline,
+                        attempt == null ? Long.MAX_VALUE : attempt.due);
+                long wait = due == Long.MAX_VALUE ? 0 : Math.max(1, due - System.currentTimeMillis());
+                selector.select(wait);
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+                while (ready.hasNext()) {
+                    SelectionKey key = ready.next();
+                    ready.remove();
+                    if (key.isValid())
+                        ((Exchange<?>) key.attachment()).onReady(key);
+                }
+                expire();
+                attemptDue();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error in AsyncTCPClient: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((Exchange<?>) key.attachment()).fail(new IOException("Client closed"));
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, e.getMessage());
+            }
+        }
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        Exchange<?> next;
+        while ((next = deadlines.peek()) != null && (next.future.isDone() || next.deadline <= now)) {
+            deadlines.poll();
+            if (!next.future.isDone())
+                next.fail(new SocketTimeoutException("No response from " + next.address + " within "
+                        + next.timeoutMs + "ms"));
+        }
+    }
+
+    /**
+     * Starts connecting to the next address of the exchanges whose attempts took too long.
+     */
+    private void attemptDue() {
+        long now = System.currentTimeMillis();
+        NextAttempt next;
+        while ((next = attempts.peek()) != null && next.due <= now) {
+            attempts.poll();
+//            Unless connected, failed or an attempt that failed already moved on to that address
+            Exchange<?> exchange = next.exchange;
+            if (!exchange.future.isDone() && exchange.channel == null && exchange.attempted == next.candidate)
+                exchange.attempt();
+        }
+    }
+
+    private static class NextAttempt {
+        final Exchange<?> exchange;
+        final int candidate;
+        final long due;
+
+        NextAttempt(Exchange<?> exchange, int candidate, long due) {
+            this.exchange = exchange;
+            this.candidate = candidate;
+            this.due = due;
+        }
+    }
+
+    /**
+     * One request and its response, driven by the selector thread.
+     */
+    private abstract class Exchange<V> {
+        final ResponseFuture<V> future;
+        final ByteBuffer[] out;
+        /**
+         * Connection carrying the request, null while the addresses are being tried.
+         */
+        SocketChannel channel;
+        SelectionKey key;
+        InetSocketAddress address;
+        long deadline;
+        long timeoutMs;
+        InetAddress[] candidates;
+        int port;
+        /**
+         * How many candidates were tried so far.
+         */
+        int attempted;
+        /**
+         * Connections in progress, until one of them is established.
+         */
+        final List<SelectionKey> racing = new ArrayList<SelectionKey>(1);
+        IOException lastFailure;
+        ResponseFuture<InetAddress> connected;
+
+        Exchange(ResponseFuture<V> future, ByteBuffer... out) {
+            this.future = future;
+            this.out = out;
+            TCPClient.REQUESTS.increment();
+            final long started = System.nanoTime();
+            future.addListener(new ResponseFuture.Listener<V>() {
+                @Override
+                public void done(ResponseFuture<V> response) {
+                    if (response.isFailed())
+                        TCPClient.FAILURES.increment();
+                    else
+                        TCPClient.LATENCY.record(System.nanoTime() - started);
+                }
+            });
+        }
+
+        /**
+         * Starts connecting to the next candidate, skipping those that fail right away.
+         * Fails the exchange once no candidate is left and no connection is in progress.
+         */
+        void attempt() {
+            while (attempted < candidates.length) {
+                InetSocketAddress target = new InetSocketAddress(candidates[attempted++], port);
+                SocketChannel candidate = null;
+                try {
+                    candidate = SocketChannel.open();
+                    candidate.configureBlocking(false);
+                    candidate.socket().setTcpNoDelay(true);
+                    boolean done = candidate.connect(target);
+                    SelectionKey attempt = candidate.register(selector, SelectionKey.OP_CONNECT, this);
+                    racing.add(attempt);
+                    if (done) {
+                        won(attempt);
+                    } else if (attempted < candidates.length) {
+                        attempts.add(new NextAttempt(this, attempted,
+                                System.currentTimeMillis() + CONNECTION_ATTEMPT_DELAY_MS));
+                    }
+                    return;
+                } catch (IOException e) {
+                    lastFailure = e;
+                    closeQuietly(candidate);
+                }
+            }
+            if (racing.isEmpty())
+                fail(lastFailure);
+        }
+
+        /**
+         * The attempt connected first, the request goes over it.
+         */
+        private void won(SelectionKey attempt) {
+            racing.remove(attempt);
+            for (SelectionKey other : racing) {
+                other.cancel();
+                closeQuietly(other.channel());
+            }
+            racing.clear();
+            TCPClient.CONNECTS.increment();
+            key = attempt;
+            channel = (SocketChannel) attempt.channel();
+            address = new InetSocketAddress(channel.socket().getInetAddress(), port);
+            key.interestOps(SelectionKey.OP_WRITE);
+            if (connected != null)
+                connected.complete(address.getAddress());
+        }
+
+        private void lost(SelectionKey attempt, IOException cause) {
+            Log.d(LOG_TAG, "Cannot connect to " + ((SocketChannel) attempt.channel()).socket().getInetAddress()
+                    + ": " + cause.getMessage());
+            lastFailure = cause;
+            racing.remove(attempt);
+            attempt.cancel();
+            closeQuietly(attempt.channel());
+//            No point waiting for the delay, the next address goes right away
+            attempt();
+        }
+
+        void onReady(SelectionKey key) {
+            if (key != this.key) {
+                try {
+                    if (((SocketChannel) key.channel()).finishConnect())
+                        won(key);
+                } catch (IOException e) {
+                    lost(key, e);
+                }
+                return;
+            }
+            try {
+                if (key.isWritable()) {
+                    TCPClient.BYTES_OUT.add(channel.write(out));
+                    if (!out[out.length - 1].hasRemaining()) {
+                        requestSent();
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                } else if (key.isReadable()) {
+                    onReadable();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        void requestSent() throws IOException {
+        }
+
+        /**
+         * Reads what is available, completes the future once the response is in.
+         */
+        abstract void onReadable() throws IOException;
+
+        void fail(Throwable cause) {
+            if (connected != null)
+                connected.fail(cause);
+            future.fail(cause);
+            close();
+        }
+
+        /**
+         * Releases the sockets, safe to call more than once.
+         */
+        void close() {
+            if (connected != null)
+                connected.cancel(false);
+            for (SelectionKey attempt : racing) {
+                attempt.cancel();
+                closeQuietly(attempt.channel());
+            }
+            racing.clear();
+            if (key != null)
+                key.cancel();
+            closeQuietly(channel);
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.getMessage());
+        }
+    }
+
+    private class UtfExchange extends Exchange<String> {
+        private ByteBuffer in = ByteBuffer.allocate(64);
+
+        UtfExchange(ResponseFuture<String> future, ByteBuffer request) {
+            super(future, request);
+        }
+
+        @Override
+        void requestSent() throws IOException {
+//            Same as the blocking client, signal there is no more data to be sent
+            channel.socket().shutdownOutput();
+        }
+
+        @Override
+        void onReadable() throws IOException {
+            if (!in.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                larger.put(in);
+                in = larger;
+            }
+            int read = channel.read(in);
+            if (read > 0)
+                TCPClient.BYTES_IN.add(read);
+            if (in.position() >= 2) {
+                int length = 2 + (((in.get(0) & 0xff) << 8) | (in.get(1) & 0xff));
+                if (in.position() >= length) {
+                    future.complete(new DataInputStream(new ByteArrayInputStream(in.array(), 0, length)).readUTF());
+                    close();
+                    return;
+                }
+            }
+            if (read < 0)
+                throw new EOFException("Connection closed before the response was complete");
+        }
+    }
+
+    private class FrameExchange extends Exchange<ByteBuffer> {
+        private final ByteBuffer header = ByteBuffer.allocate(Frames.HEADER_LENGTH);
+        private ByteBuffer payload;
+        private ByteBuffer ownedRequest;
+
+        FrameExchange(ResponseFuture<ByteBuffer> future, ByteBuffer header, ByteBuffer request,
+                      ByteBuffer ownedRequest) {
+            super(future, header, request);
+            this.ownedRequest = ownedRequest;
+        }
+
+        @Override
+        void onReadable() throws IOException {
+            int read = channel.read(payload != null ? payload : header);
+            if (read > 0)
+                TCPClient.BYTES_IN.add(read);
+            if (payload == null && !header.hasRemaining()) {
+                payload = buffers.acquire(Frames.payloadLength(header, 0));
+                read = channel.read(payload);
+                if (read > 0)
+                    TCPClient.BYTES_IN.add(read);
+            }
+            if (payload != null && !payload.hasRemaining()) {
+//                From now on the response belongs to whoever gets the future's result
+                ByteBuffer response = payload;
+                payload = null;
+                response.flip();
+                if (!future.complete(response))
+                    buffers.release(response);
+                close();
+            } else if (read < 0) {
+                throw new EOFException("Connection closed before the response was complete");
+            }
+        }
+
+        @Override
+        void close() {
+            super.close();
+            buffers.release(payload);
+            payload = null;
+//            Only now nothing can be writing the request anymore
+            buffers.release(ownedRequest);
+            ownedRequest = null;
+        }
+    }
+}
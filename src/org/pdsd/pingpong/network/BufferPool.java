@@ -0,0 +1,95 @@
+package org.pdsd.pingpong.network;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * Recycles direct byte buffers so that exchanging frames does not allocate
+ * (and later collect) a new buffer for every request.
+ *
+ * Buffers come in power of two size classes, from MIN_CLASS to MAX_CLASS bytes.
+ * Larger requests get a one-off buffer that is simply dropped when released.
+ */
+public class BufferPool {
+    public static final int MIN_CLASS = 1 << 9;
+    public static final int MAX_CLASS = 1 << 20;
+    /**
+     * How many idle buffers are kept per size class.
+     */
+    public static final int DEFAULT_MAX_IDLE = 64;
+
+    private static final BufferPool SHARED = new BufferPool(DEFAULT_MAX_IDLE);
+
+    private final int maxIdle;
+    private final Queue<ByteBuffer>[] free;
+    private final AtomicInteger[] idle;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int maxIdle) {
+        this.maxIdle = maxIdle;
+        int classes = sizeClass(MAX_CLASS) + 1;
+        free = new Queue[classes];
+        idle = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            idle[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * @return Pool shared by the clients and servers of this process.
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * @param size Bytes needed.
+     * @return A cleared buffer, its limit set to size. Its capacity may be larger.
+     */
+    public ByteBuffer acquire(int size) {
+        if (size > MAX_CLASS)
+            return ByteBuffer.allocateDirect(size);
+
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = free[sizeClass].poll();
+        if (buffer != null) {
+            idle[sizeClass].decrementAndGet();
+            buffer.clear();
+        } else {
+            buffer = ByteBuffer.allocateDirect(MIN_CLASS << sizeClass);
+        }
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Gives the buffer back, it must not be used afterwards. Buffers that were
+     * not obtained from acquire() are ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect())
+            return;
+        int capacity = buffer.capacity();
+        if (capacity < MIN_CLASS || capacity > MAX_CLASS || Integer.bitCount(capacity) != 1)
+            return;
+
+        int sizeClass = sizeClass(capacity);
+        if (idle[sizeClass].incrementAndGet() <= maxIdle) {
+            free[sizeClass].offer(buffer);
+        } else {
+            idle[sizeClass].decrementAndGet();
+        }
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= MIN_CLASS)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_CLASS);
+    }
+}
@@ -0,0 +1,286 @@
+package org.pdsd.pingpong.network;
+
+import org.pdsd.pingpong.platform.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * Keeps frame connections open between requests, so talking to the same peer
+ * again skips the TCP handshake and does not leave a socket in TIME_WAIT behind.
+ *
+ * Connections are kept per peer address and port, at most maxPerPeer of them
+ * in use or idle at once. Idle ones are closed after idleTimeoutMs, which should
+ * stay below the server's own idle timeout, and are checked before being reused.
+ * A connection is only kept if the server confirmed it with FLAG_KEEP_ALIVE.
+ *
+ * A request that fails on a reused connection is sent again on a new one only if it
+ * did not get out whole, otherwise the server may have handled it already.
+ */
+public class ConnectionPool {
+    private static final String LOG_TAG = "Connection Pool";
+
+    public static final int DEFAULT_MAX_PER_PEER = 4;
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = NioTCPServer.IDLE_TIMEOUT_MS / 2;
+    /**
+     * How long a request waits for one of the peer's connections to become available.
+     */
+    public static final long ACQUIRE_TIMEOUT_MS = 5000;
+    /**
+     * How long connecting, and then each read of the response, may take.
+     */
+    public static final int IO_TIMEOUT_MS = TCPClient.DEFAULT_TIMEOUT_MS;
+
+    private static ConnectionPool shared;
+
+    private final int maxPerPeer;
+    private final long idleTimeoutMs;
+    private final BufferPool buffers;
+    private final ConcurrentMap<InetSocketAddress, Peer> peers = new ConcurrentHashMap<InetSocketAddress, Peer>();
+    private final Timer evictor = new Timer("ConnectionPool-evictor", true);
+    private volatile boolean closed;
+
+    /**
+     * Connections to one peer.
+     */
+    private static class Peer {
+        final Semaphore permits;
+        /**
+         * Most recently used first, guarded by itself.
+         */
+        final Deque<Idle> idle = new ArrayDeque<Idle>();
+
+        Peer(int maxConnections) {
+            permits = new Semaphore(maxConnections);
+        }
+    }
+
+    private static class Idle {
+        final SocketChannel channel;
+        final long since;
+
+        Idle(SocketChannel channel, long since) {
+            this.channel = channel;
+            this.since = since;
+        }
+    }
+
+    public ConnectionPool(int maxPerPeer, long idleTimeoutMs, BufferPool buffers) {
+        this.maxPerPeer = maxPerPeer;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.buffers = buffers;
+        evictor.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, idleTimeoutMs, Math.max(1, idleTimeoutMs / 2));
+    }
+
+    /**
+     * @return Pool shared by the clients of this process, created on first use.
+     */
+    public static synchronized ConnectionPool shared() {
+        if (shared == null)
+            shared = new ConnectionPool(DEFAULT_MAX_PER_PEER, DEFAULT_IDLE_TIMEOUT_MS, BufferPool.shared());
+        return shared;
+    }
+
+    /**
+     * Sends a frame and waits for the response frame, over a pooled connection if one is available.
+     * @param payload Request, consumed from its position to its limit.
+     * @param destination IP address
+     * @param port Port
+     * @return Response payload, in a buffer from the pool's BufferPool. Release it when done.
+     * @throws IOException
+     */
+    public ByteBuffer exchange(ByteBuffer payload, InetAddress destination, int port) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(destination, port);
+        Peer peer = acquire(address);
+        try {
+            SocketChannel reused = takeHealthy(peer);
+            if (reused != null) {
+                int start = payload.position();
+                try {
+                    return exchange(peer, reused, payload);
+                } catch (IOException e) {
+                    if (!payload.hasRemaining())
+                        throw e;
+//                    The server dropped the connection before the request got out whole, try once on a fresh one
+                    Log.d(LOG_TAG, "Pooled connection to " + address + " failed: " + e.getMessage());
+                    payload.position(start);
+                }
+            }
+            return exchange(peer, open(address), payload);
+        } finally {
+            peer.permits.release();
+        }
+    }
+
+    /**
+     * @return The peer's connections, with one of its permits taken.
+     */
+    private Peer acquire(InetSocketAddress address) throws IOException {
+        while (true) {
+            Peer peer = peers.get(address);
+            if (peer == null) {
+                Peer created = new Peer(maxPerPeer);
+                peer = peers.putIfAbsent(address, created);
+                if (peer == null)
+                    peer = created;
+            }
+
+            try {
+                if (!peer.permits.tryAcquire(ACQUIRE_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                    throw new IOException("All " + maxPerPeer + " connections to " + address + " are busy");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a connection to " + address);
+            }
+
+//            The evictor may have dropped the peer before the permit was taken, see evictIdle()
+            synchronized (peer.idle) {
+                if (peers.get(address) == peer)
+                    return peer;
+            }
+            peer.permits.release();
+        }
+    }
+
+    private ByteBuffer exchange(Peer peer, SocketChannel channel, ByteBuffer payload) throws IOException {
+        boolean keep = false;
+        try {
+            Frames.write(channel, Frames.FLAG_KEEP_ALIVE, payload);
+//            Reads on the channel itself would ignore the timeout
+            ReadableByteChannel responses = Channels.newChannel(channel.socket().getInputStream());
+            ByteBuffer header = ByteBuffer.allocate(Frames.HEADER_LENGTH);
+            int length = Frames.readHeader(responses, header);
+            ByteBuffer response = Frames.readPayload(responses, length, buffers);
+            keep = !closed && (Frames.flags(header, 0) & Frames.FLAG_KEEP_ALIVE) != 0;
+            return response;
+        } finally {
+            if (keep) {
+                synchronized (peer.idle) {
+                    peer.idle.addFirst(new Idle(channel, System.currentTimeMillis()));
+                }
+            } else {
+                close(channel);
+            }
+        }
+    }
+
+    private static SocketChannel open(InetSocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().connect(address, IO_TIMEOUT_MS);
+            channel.socket().setSoTimeout(IO_TIMEOUT_MS);
+            return channel;
+        } catch (IOException e) {
+            close(channel);
+            throw e;
+        }
+    }
+
+    /**
+     * @return The most recently used idle connection that is still usable, or null.
+     */
+    private SocketChannel takeHealthy(Peer peer) {
+        long now = System.currentTimeMillis();
+        while (true) {
+            Idle candidate;
+            synchronized (peer.idle) {
+                candidate = peer.idle.pollFirst();
+            }
+            if (candidate == null)
+                return null;
+            if (now - candidate.since < idleTimeoutMs && isHealthy(candidate.channel))
+                return candidate.channel;
+            close(candidate.channel);
+        }
+    }
+
+    /**
+     * An idle connection must have nothing to read: end of stream means the server
+     * closed it, and unexpected bytes mean the exchange got out of step.
+     */
+    private static boolean isHealthy(SocketChannel channel) {
+        if (!channel.isOpen() || !channel.isConnected())
+            return false;
+        try {
+            channel.configureBlocking(false);
+            int read = channel.read(ByteBuffer.allocate(1));
+            channel.configureBlocking(true);
+            return read == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes the connections that stayed idle for longer than the timeout, and
+     * forgets the peers left with no connection at all.
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<InetSocketAddress, Peer> entry : peers.entrySet()) {
+            Peer peer = entry.getValue();
+            synchronized (peer.idle) {
+                Iterator<Idle> oldestFirst = peer.idle.descendingIterator();
+                while (oldestFirst.hasNext()) {
+                    Idle idle = oldestFirst.next();
+                    if (now - idle.since < idleTimeoutMs)
+                        break;
+                    oldestFirst.remove();
+                    close(idle.channel);
+                }
+//                Under the lock acquire() checks the peer with, a request that took a permit meanwhile starts over
+                if (peer.idle.isEmpty() && peer.permits.availablePermits() == maxPerPeer)
+                    peers.remove(entry.getKey(), peer);
+            }
+        }
+    }
+
+    /**
+     * Closes every idle connection and stops evicting. Connections in use are
+     * closed when their exchange ends.
+     */
+    public void close() {
+        closed = true;
+        evictor.cancel();
+        for (Peer peer : peers.values()) {
+            synchronized (peer.idle) {
+                for (Idle idle : peer.idle) {
+                    close(idle.channel);
+                }
+                peer.idle.clear();
+            }
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.getMessage());
+        }
+    }
+}
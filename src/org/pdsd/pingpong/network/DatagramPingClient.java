@@ -0,0 +1,296 @@
+package org.pdsd.pingpong.network;
+
+import org.pdsd.pingpong.platform.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * Sends requests to a {@link DatagramPingServer}, without blocking. All requests go
+ * out of a single socket and are told apart by their id.
+ *
+ * A request that gets no answer is sent again after FIRST_RETRY_MS, then after twice
+ * as long and so on, at most MAX_ATTEMPTS times within its deadline. Answers to a request
+ * that was already answered, or that come from another address, are dropped. Requests
+ * too large for a datagram, those whose response is, and those still unanswered after
+ * the last attempt go over TCP instead, in case datagrams do not get through at all.
+ *
+ * Listeners of the returned futures run on the receiving thread or the retry timer,
+ * they should only hand the result over to somewhere else.
+ */
+public class DatagramPingClient {
+    private static final String LOG_TAG = "Datagram Client";
+
+    public static final long FIRST_RETRY_MS = 100;
+    public static final int MAX_ATTEMPTS = 4;
+    /**
+     * Every response comes in through the one socket, bursts must not overflow it.
+     */
+    private static final int RECEIVE_BUFFER = 1 << 20;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static DatagramPingClient shared;
+
+    private final DatagramChannel channel;
+    private final ConcurrentMap<Integer, Request> pending = new ConcurrentHashMap<Integer, Request>();
+    private final AtomicInteger ids = new AtomicInteger(new Random().nextInt());
+    private final Timer timer = new Timer("DatagramPingClient-timer", true);
+    private volatile boolean alive = true;
+
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+
+    /**
+     * One request waiting for its answer.
+     */
+    private class Request {
+        final int id;
+        final ResponseFuture<String> future = new ResponseFuture<String>();
+        final ByteBuffer datagram;
+        final InetSocketAddress target;
+        final String text;
+        final int tcpPort;
+        final long timeoutMs;
+        final long deadline;
+        volatile int attempts;
+        /**
+         * Set once the request went over TCP, no datagram is sent for it after that.
+         */
+        final AtomicBoolean fellBack = new AtomicBoolean();
+        TimerTask timeout;
+        volatile TimerTask retry;
+
+        Request(int id, ByteBuffer datagram, InetSocketAddress target, String text, int tcpPort, long timeoutMs) {
+            this.id = id;
+            this.datagram = datagram;
+            this.target = target;
+            this.text = text;
+            this.tcpPort = tcpPort;
+            this.timeoutMs = timeoutMs;
+            this.deadline = System.currentTimeMillis() + timeoutMs;
+        }
+    }
+
+    public DatagramPingClient() throws IOException {
+        channel = DatagramChannel.open();
+        channel.socket().setReceiveBufferSize(RECEIVE_BUFFER);
+        channel.socket().bind(null);
+        Thread receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "DatagramPingClient");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * @return Client shared by this process, created on first use.
+     */
+    public static synchronized DatagramPingClient shared() {
+        if (shared == null) {
+            try {
+                shared = new DatagramPingClient();
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot open a datagram socket: " + e.getMessage());
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * @return Requests sent again because no answer came in time.
+     */
+    public long retries() {
+        return retries.get();
+    }
+
+    /**
+     * @return Answers dropped because their request was already answered, or given up.
+     */
+    public long duplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * Sends a UTF-8 request and waits for the response, the same exchange as
+     * AsyncTCPClient.sendFrame() over a datagram.
+     * @param port The peer's datagram port.
+     * @param tcpPort The peer's TCP port, used when either message is too large for a datagram.
+     * @param timeoutMs The future fails if the response is not in by then, retries included.
+     * @return Future response from the other host.
+     */
+    public ResponseFuture<String> sendTo(String str, InetAddress destination, int port, int tcpPort, long timeoutMs) {
+        byte[] payload = str.getBytes(UTF8);
+        if (payload.length > DatagramPingServer.MAX_PAYLOAD)
+            return AsyncTCPClient.shared().sendFrame(str, destination, tcpPort, timeoutMs);
+
+        int id = ids.incrementAndGet();
+        ByteBuffer datagram = ByteBuffer.allocate(Frames.HEADER_LENGTH + Frames.TAG_LENGTH + payload.length);
+        Frames.putTaggedHeader(datagram, 0, id, payload.length);
+        datagram.put(payload).flip();
+        final Request request = new Request(id, datagram, new InetSocketAddress(destination, port), str, tcpPort,
+                timeoutMs);
+        pending.put(id, request);
+        request.timeout = new TimerTask() {
+            @Override
+            public void run() {
+                request.future.fail(new SocketTimeoutException("No response from " + request.target + " within "
+                        + request.timeoutMs + "ms, " + request.attempts + " attempts"));
+            }
+        };
+        timer.schedule(request.timeout, Math.max(0, timeoutMs));
+        request.future.addListener(new ResponseFuture.Listener<String>() {
+            @Override
+            public void done(ResponseFuture<String> future) {
+                pending.remove(request.id, request);
+                request.timeout.cancel();
+                cancelRetry(request);
+            }
+        });
+
+        send(request, FIRST_RETRY_MS);
+        return request.future;
+    }
+
+    /**
+     * Sends the request and schedules the next attempt, if one is left and fits before the deadline.
+     */
+    private void send(final Request request, final long retryMs) {
+        if (request.future.isDone() || request.fellBack.get())
+            return;
+        request.attempts++;
+        try {
+            channel.send(request.datagram.duplicate(), request.target);
+        } catch (IOException e) {
+            request.future.fail(e);
+            return;
+        }
+        if (System.currentTimeMillis() + retryMs >= request.deadline)
+            return;
+        TimerTask retry = new TimerTask() {
+            @Override
+            public void run() {
+                if (request.future.isDone() || request.fellBack.get())
+                    return;
+                retries.incrementAndGet();
+                if (request.attempts < MAX_ATTEMPTS)
+                    send(request, retryMs * 2);
+                else
+                    fallBack(request);
+            }
+        };
+        request.retry = retry;
+        timer.schedule(retry, retryMs);
+//        The request may have ended before the task was set, the listener would have missed it
+        if (request.future.isDone() || request.fellBack.get())
+            retry.cancel();
+    }
+
+    private static void cancelRetry(Request request) {
+        TimerTask retry = request.retry;
+        if (retry != null)
+            retry.cancel();
+    }
+
+    /**
+     * Stops receiving, requests in progress fail.
+     */
+    public void close() {
+        alive = false;
+        timer.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.getMessage());
+        }
+        for (Request request : pending.values()) {
+            request.future.fail(new IOException("Client closed"));
+        }
+    }
+
+    private void loop() {
+        ByteBuffer in = ByteBuffer.allocate(DatagramPingServer.MAX_DATAGRAM + 1);
+        while (alive) {
+            try {
+                in.clear();
+                SocketAddress from = channel.receive(in);
+                in.flip();
+                receive(in, from);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error receiving: " + e.getMessage());
+            }
+        }
+    }
+
+    private void receive(ByteBuffer in, SocketAddress from) throws IOException {
+        if (in.remaining() > DatagramPingServer.MAX_DATAGRAM
+                || in.remaining() < Frames.HEADER_LENGTH + Frames.TAG_LENGTH
+                || (Frames.flags(in, 0) & Frames.FLAG_TAGGED) == 0
+                || Frames.payloadLength(in, 0) != in.remaining() - Frames.HEADER_LENGTH) {
+            Log.w(LOG_TAG, "Dropped malformed datagram from " + from);
+            return;
+        }
+        Request request = pending.get(in.getInt(Frames.HEADER_LENGTH));
+        if (request == null || !request.target.equals(from) || !pending.remove(request.id, request)) {
+//            Answer to a retry, the first one already completed the request
+            duplicates.incrementAndGet();
+            return;
+        }
+
+        int flags = Frames.flags(in, 0);
+        in.position(Frames.HEADER_LENGTH + Frames.TAG_LENGTH);
+        if ((flags & Frames.FLAG_TRUNCATED) != 0) {
+            fallBack(request);
+        } else if ((flags & Frames.FLAG_ERROR) != 0) {
+            request.future.fail(new IOException("Request failed: " + Frames.decodeUtf8(in)));
+        } else {
+            request.future.complete(Frames.decodeUtf8(in));
+        }
+    }
+
+    /**
+     * Sends the request again over TCP, with what is left of its deadline. Only the first call does.
+     */
+    private void fallBack(final Request request) {
+        if (!request.fellBack.compareAndSet(false, true))
+            return;
+        cancelRetry(request);
+        long remainingMs = request.deadline - System.currentTimeMillis();
+        if (remainingMs <= 0)
+            return;
+        Log.d(LOG_TAG, "Asking " + request.target.getAddress() + " over TCP");
+        AsyncTCPClient.shared().sendFrame(request.text, request.target.getAddress(), request.tcpPort, remainingMs)
+                .addListener(new ResponseFuture.Listener<String>() {
+                    @Override
+                    public void done(ResponseFuture<String> response) {
+                        if (response.getNow() != null)
+                            request.future.complete(response.getNow());
+                        else
+                            request.future.fail(response.getFailure());
+                    }
+                });
+    }
+}
@@ -0,0 +1,217 @@
+package org.pdsd.pingpong.network;
+
+import org.pdsd.pingpong.platform.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * Answers requests sent as UDP datagrams, next to a {@link TCPServer} and through its
+ * buildResponse(), until the server is killed. A ping then costs one datagram each way
+ * instead of a connection set up and torn down for a few bytes.
+ *
+ * Each datagram holds one tagged frame (see {@link Frames}), the response repeats its
+ * request id. Datagrams are kept under MAX_DATAGRAM so they are never fragmented, a
+ * response that does not fit is answered with FLAG_TRUNCATED and the client asks
+ * again over TCP.
+ *
+ * Clients retry requests whose response got lost. The last responses are remembered
+ * for a while, by client and request id, so a retried request is answered again
+ * without being handled twice.
+ */
+public class DatagramPingServer {
+    private static final String LOG_TAG = "Datagram Server";
+
+    /**
+     * Largest datagram sent or accepted, fits the minimum IPv6 MTU.
+     */
+    public static final int MAX_DATAGRAM = 1200;
+    /**
+     * Largest request or response payload a datagram carries.
+     */
+    public static final int MAX_PAYLOAD = MAX_DATAGRAM - Frames.HEADER_LENGTH - Frames.TAG_LENGTH;
+
+    private static final int RECENT_RESPONSES = 512;
+    private static final int RECEIVE_BUFFER = 256 << 10;
+    private static final long RECENT_RESPONSE_MS = 10000;
+
+    private final TCPServer server;
+    private final DatagramChannel channel;
+    private volatile boolean alive = true;
+
+    /**
+     * Requests seen lately, guarded by itself. Oldest first, the eldest are dropped.
+     */
+    private final Map<Request, Answer> recent = new LinkedHashMap<Request, Answer>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Request, Answer> eldest) {
+            return size() > RECENT_RESPONSES;
+        }
+    };
+
+    /**
+     * A request id is only unique for the client that chose it.
+     */
+    private static class Request {
+        final SocketAddress client;
+        final int id;
+
+        Request(SocketAddress client, int id) {
+            this.client = client;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Request))
+                return false;
+            Request request = (Request) other;
+            return id == request.id && client.equals(request.client);
+        }
+
+        @Override
+        public int hashCode() {
+            return client.hashCode() * 31 + id;
+        }
+    }
+
+    private static class Answer {
+        final long received = System.currentTimeMillis();
+        /**
+         * The response datagram, null while the request is being handled.
+         */
+        volatile ByteBuffer datagram;
+    }
+
+    /**
+     * Starts answering datagrams on the server's address, on a port chosen by the system.
+     * @param server Builds the responses and decides where requests are handled.
+     */
+    public DatagramPingServer(TCPServer server) throws IOException {
+        this.server = server;
+        channel = DatagramChannel.open();
+        channel.socket().setReceiveBufferSize(RECEIVE_BUFFER);
+        channel.socket().bind(new InetSocketAddress(server.listenAddress(), 0));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "DatagramPingServer").start();
+    }
+
+    /**
+     * @return Port to advertise, it differs from the TCP server's.
+     */
+    public int listenPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    public void kill() {
+        alive = false;
+        try {
+//            Wakes up the thread waiting for a datagram
+            channel.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.getMessage());
+        }
+    }
+
+    private void loop() {
+//        One byte more than allowed, to tell an oversized datagram from one that fits exactly
+        ByteBuffer in = ByteBuffer.allocate(MAX_DATAGRAM + 1);
+        while (alive) {
+            try {
+                in.clear();
+                SocketAddress client = channel.receive(in);
+                in.flip();
+                receive(in, client);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error receiving: " + e.getMessage());
+            }
+        }
+        Log.d(LOG_TAG, "Stopped");
+    }
+
+    private void receive(ByteBuffer in, final SocketAddress client) throws IOException {
+        if (!server.isAlive()) {
+//            Killed along with the server it answers for
+            kill();
+            return;
+        }
+        if (in.remaining() > MAX_DATAGRAM || in.remaining() < Frames.HEADER_LENGTH + Frames.TAG_LENGTH
+                || (Frames.flags(in, 0) & Frames.FLAG_TAGGED) == 0
+                || Frames.payloadLength(in, 0) != in.remaining() - Frames.HEADER_LENGTH) {
+            Log.w(LOG_TAG, "Dropped malformed datagram from " + client);
+            return;
+        }
+        final int id = in.getInt(Frames.HEADER_LENGTH);
+        Request request = new Request(client, id);
+        final Answer answer;
+        synchronized (recent) {
+            Answer previous = recent.get(request);
+            if (previous != null && System.currentTimeMillis() - previous.received < RECENT_RESPONSE_MS) {
+//                A retry, the response got lost or is still being built
+                ByteBuffer datagram = previous.datagram;
+                if (datagram != null)
+                    channel.send(datagram.duplicate(), client);
+                return;
+            }
+            answer = new Answer();
+            recent.put(request, answer);
+        }
+
+        in.position(Frames.HEADER_LENGTH + Frames.TAG_LENGTH);
+//        The receive buffer is reused for the next datagram
+        final ByteBuffer payload = ByteBuffer.allocate(in.remaining());
+        payload.put(in).flip();
+        server.requestExecutor().execute(new RequestExecutor.Job() {
+            @Override
+            public void run() {
+                ByteBuffer response = server.answer(payload);
+                try {
+                    if (response.remaining() > MAX_PAYLOAD)
+                        respond(client, answer, id, Frames.FLAG_TRUNCATED, ByteBuffer.allocate(0));
+                    else
+                        respond(client, answer, id, 0, response);
+                } finally {
+                    BufferPool.shared().release(response);
+                }
+            }
+
+            @Override
+            public void reject(String reason) {
+                Log.w(LOG_TAG, "Request dropped, " + reason);
+                ByteBuffer text = Frames.encodeUtf8(reason, BufferPool.shared());
+                try {
+                    respond(client, answer, id, Frames.FLAG_ERROR, text);
+                } finally {
+                    BufferPool.shared().release(text);
+                }
+            }
+        });
+    }
+
+    private void respond(SocketAddress client, Answer answer, int id, int flags, ByteBuffer payload) {
+        ByteBuffer datagram = ByteBuffer.allocate(Frames.HEADER_LENGTH + Frames.TAG_LENGTH + payload.remaining());
+        Frames.putTaggedHeader(datagram, flags, id, payload.remaining());
+        datagram.put(payload).flip();
+        answer.datagram = datagram;
+        try {
+            channel.send(datagram.duplicate(), client);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Cannot answer " + client + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package org.pdsd.pingpong.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * Binary wire format, an alternative to the writeUTF() / readUTF() exchange.
+ *
+ * Every message is a frame: an 8 byte header followed by the payload.
+ * <pre>
+ *   0      2         3       4          8
+ *   | magic | version | flags | length   | payload ...
+ * </pre>
+ * The magic is read as a length by servers expecting a UTF string, and no string
+ * sent by TCPClient.sendTo() can start with it unless its encoded length is exactly
+ * 0xFFB1 bytes, so both formats are told apart by the first two bytes and can be
+ * served on the same port.
+ *
+ * Flags:
+ * <ul>
+ *   <li>FLAG_KEEP_ALIVE on a request asks the server to keep the connection open for
+ *   more requests, on a response it confirms the server will.</li>
+ *   <li>FLAG_TAGGED marks a pipelined frame: its payload starts with a 4 byte request
+ *   id, which the response repeats. The client may send more tagged frames without
+ *   waiting, and the server may answer them in any order.</li>
+ *   <li>FLAG_ERROR on a tagged response means the request failed, the payload holds
+ *   the reason as UTF-8 text.</li>
+ *   <li>FLAG_TRUNCATED on a datagram response means the response did not fit in a
+ *   datagram, the request should be sent again over TCP.</li>
+ * </ul>
+ *
+ * Datagrams carry exactly one tagged frame each, see {@link DatagramPingServer}.
+ */
+public final class Frames {
+    public static final int MAGIC = 0xFFB1;
+    public static final int VERSION = 1;
+    public static final int HEADER_LENGTH = 8;
+
+    public static final int FLAG_KEEP_ALIVE = 0x01;
+    public static final int FLAG_TAGGED = 0x02;
+    public static final int FLAG_ERROR = 0x04;
+    public static final int FLAG_TRUNCATED = 0x08;
+    /**
+     * Size of the request id at the start of a tagged payload.
+     */
+    public static final int TAG_LENGTH = 4;
+    /**
+     * Largest payload accepted from the network, guards against garbage lengths.
+     */
+    public static final int MAX_PAYLOAD = 64 << 20;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ThreadLocal<CharsetEncoder> ENCODER = new ThreadLocal<CharsetEncoder>() {
+        @Override
+        protected CharsetEncoder initialValue() {
+            return UTF8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+    };
+    private static final ThreadLocal<CharsetDecoder> DECODER = new ThreadLocal<CharsetDecoder>() {
+        @Override
+        protected CharsetDecoder initialValue() {
+            return UTF8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+    };
+    private static final ThreadLocal<CharBuffer> CHARS = new ThreadLocal<CharBuffer>() {
+        @Override
+        protected CharBuffer initialValue() {
+            return CharBuffer.allocate(256);
+        }
+    };
+    private static final ThreadLocal<ByteBuffer[]> HEADER_AND_PAYLOAD = new ThreadLocal<ByteBuffer[]>() {
+        @Override
+        protected ByteBuffer[] initialValue() {
+            return new ByteBuffer[] { ByteBuffer.allocateDirect(HEADER_LENGTH), null };
+        }
+    };
+
+    private Frames() {
+    }
+
+    /**
+     * @param firstTwoBytes The first two bytes of a message, as an unsigned big endian short.
+     * @return true if the message is a frame rather than a UTF string.
+     */
+    public static boolean isFrame(int firstTwoBytes) {
+        return firstTwoBytes == MAGIC;
+    }
+
+    /**
+     * Looks at the first two bytes of a buffer being filled, without moving it.
+     */
+    public static boolean isFrame(ByteBuffer in) {
+        return in.position() >= 2 && isFrame(((in.get(0) & 0xff) << 8) | (in.get(1) & 0xff));
+    }
+
+    /**
+     * Writes a frame header at the buffer's position.
+     */
+    public static void putHeader(ByteBuffer dst, int flags, int length) {
+        dst.putShort((short) MAGIC);
+        dst.put((byte) VERSION);
+        dst.put((byte) flags);
+        dst.putInt(length);
+    }
+
+    /**
+     * Writes the header of a tagged frame followed by its request id.
+     * @param length Payload length, not counting the id.
+     */
+    public static void putTaggedHeader(ByteBuffer dst, int flags, int id, int length) {
+        putHeader(dst, flags | FLAG_TAGGED, TAG_LENGTH + length);
+        dst.putInt(id);
+    }
+
+    /**
+     * Validates the header that starts at the given index.
+     * @return Payload length announced by the header.
+     * @throws IOException On unknown versions or lengths out of range.
+     */
+    public static int payloadLength(ByteBuffer header, int start) throws IOException {
+        if (!isFrame(header.getShort(start) & 0xffff))
+            throw new IOException("Not a frame");
+        int version = header.get(start + 2) & 0xff;
+        if (version != VERSION)
+            throw new IOException("Unsupported frame version " + version);
+        int length = header.getInt(start + 4);
+        if (length < 0 || length > MAX_PAYLOAD)
+            throw new IOException("Frame length out of range: " + length);
+        return length;
+    }
+
+    /**
+     * @return Flags of the header that starts at the given index.
+     */
+    public static int flags(ByteBuffer header, int start) {
+        return header.get(start + 3) & 0xff;
+    }
+
+    /**
+     * Sends a frame over a blocking channel. The payload is written as is, so a
+     * direct buffer goes to the socket without being copied through the heap.
+     * @param payload Bytes between its position and its limit are sent, the buffer is consumed.
+     */
+    public static void write(GatheringByteChannel channel, int flags, ByteBuffer payload) throws IOException {
+        ByteBuffer[] frame = HEADER_AND_PAYLOAD.get();
+        frame[0].clear();
+        putHeader(frame[0], flags, payload.remaining());
+        frame[0].flip();
+        frame[1] = payload;
+        try {
+//            Header and payload leave in the same segment when they fit
+            while (payload.hasRemaining() || frame[0].hasRemaining()) {
+                channel.write(frame);
+            }
+        } finally {
+            frame[1] = null;
+        }
+    }
+
+    /**
+     * Receives a frame from a blocking channel.
+     * @return Payload in a buffer from the pool, ready to be read. Release it when done.
+     */
+    public static ByteBuffer read(ReadableByteChannel channel, BufferPool pool) throws IOException {
+        ByteBuffer header = HEADER_AND_PAYLOAD.get()[0];
+        return readPayload(channel, readHeader(channel, header), pool);
+    }
+
+    /**
+     * Receives a frame header from a blocking channel.
+     * @param header Buffer of at least HEADER_LENGTH bytes, filled from its start.
+     * @return Payload length announced by the header.
+     */
+    public static int readHeader(ReadableByteChannel channel, ByteBuffer header) throws IOException {
+        header.clear();
+        header.limit(HEADER_LENGTH);
+        readFully(channel, header);
+        return payloadLength(header, 0);
+    }
+
+    /**
+     * Receives the payload that follows a header read with readHeader().
+     * @return Payload in a buffer from the pool, ready to be read. Release it when done.
+     */
+    public static ByteBuffer readPayload(ReadableByteChannel channel, int length, BufferPool pool) throws IOException {
+        ByteBuffer payload = pool.acquire(length);
+        try {
+            readFully(channel, payload);
+        } catch (IOException e) {
+            pool.release(payload);
+            throw e;
+        }
+        payload.flip();
+        return payload;
+    }
+
+    private static void readFully(ReadableByteChannel channel, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            if (channel.read(dst) < 0)
+                throw new EOFException("Connection closed in the middle of a frame");
+        }
+    }
+
+    /**
+     * @return The string encoded as UTF-8 in a pooled buffer, ready to be read.
+     */
+    public static ByteBuffer encodeUtf8(CharSequence text, BufferPool pool) {
+        CharsetEncoder encoder = ENCODER.get();
+        ByteBuffer encoded = pool.acquire((int) (text.length() * encoder.maxBytesPerChar()));
+        encoder.reset();
+        CharBuffer chars = CharBuffer.wrap(text);
+        encoder.encode(chars, encoded, true);
+        encoder.flush(encoded);
+        encoded.flip();
+        return encoded;
+    }
+
+    /**
+     * Decodes the bytes between the buffer's position and limit, consuming them.
+     */
+    public static String decodeUtf8(ByteBuffer bytes) {
+        CharsetDecoder decoder = DECODER.get();
+        CharBuffer chars = CHARS.get();
+        int needed = (int) (bytes.remaining() * decoder.maxCharsPerByte());
+        if (chars.capacity() < needed) {
+            chars = CharBuffer.allocate(needed);
+            CHARS.set(chars);
+        }
+        chars.clear();
+        decoder.reset();
+//        Malformed input is replaced, so decoding cannot fail
+        decoder.decode(bytes, chars, true);
+        decoder.flush(chars);
+        chars.flip();
+        return chars.toString();
+    }
+}
@@ -0,0 +1,141 @@
+package org.pdsd.pingpong.network;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * Distribution of round trip times, in fixed buckets laid out like a floating point
+ * number: every power of two of microseconds is split in SUB_BUCKETS equal parts, so
+ * the error of a percentile stays below 25% from 1us up to hours, in 140 counters.
+ *
+ * Recording is lock free and does not allocate, any thread may record while others read.
+ * Reads are not atomic across buckets, a percentile taken while recording may be off
+ * by the samples recorded meanwhile.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /**
+     * Highest power of two of microseconds with its own buckets, about 9.5 hours.
+     */
+    private static final int MAX_EXPONENT = 35;
+    public static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * @param nanos Duration of one exchange, negative ones are ignored.
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            return;
+        counts.incrementAndGet(bucketOf(TimeUnit.NANOSECONDS.toMicros(nanos)));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+//            Lost the race to another sample, check against the new maximum
+        }
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS)
+            return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT)
+            return BUCKETS - 1;
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return Largest duration, in microseconds, counted in the given bucket.
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long width = 1L << (exponent - SUB_BITS);
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+        return lower + width - 1;
+    }
+
+    /**
+     * @return Number of exchanges recorded.
+     */
+    public long count() {
+        return count.get();
+    }
+
+    /**
+     * @return Average duration in nanoseconds, 0 if nothing was recorded.
+     */
+    public long meanNanos() {
+        long samples = count.get();
+        return samples == 0 ? 0 : totalNanos.get() / samples;
+    }
+
+    public long maxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * @param percentile Between 0 and 100, e.g. 99 for the p99.
+     * @return Duration in nanoseconds that the given share of the exchanges did not exceed,
+     * rounded up to the bucket bound, 0 if nothing was recorded.
+     */
+    public long percentileNanos(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long samples = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            samples += snapshot[i];
+        }
+        if (samples == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(samples * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(TimeUnit.MICROSECONDS.toNanos(upperBoundOf(i) + 1) - 1, maxNanos.get());
+        }
+        return maxNanos.get();
+    }
+
+    /**
+     * Adds the samples of another histogram to this one.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long samples = other.counts.get(i);
+            if (samples != 0)
+                counts.addAndGet(i, samples);
+        }
+        count.addAndGet(other.count.get());
+        totalNanos.addAndGet(other.totalNanos.get());
+        long max;
+        long otherMax = other.maxNanos.get();
+        while (otherMax > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, otherMax)) {
+//            Same as in record
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%dus p50=%dus p90=%dus p99=%dus max=%dus", count(),
+                TimeUnit.NANOSECONDS.toMicros(meanNanos()),
+                TimeUnit.NANOSECONDS.toMicros(percentileNanos(50)),
+                TimeUnit.NANOSECONDS.toMicros(percentileNanos(90)),
+                TimeUnit.NANOSECONDS.toMicros(percentileNanos(99)),
+                TimeUnit.NANOSECONDS.toMicros(maxNanos()));
+    }
+}
@@ -0,0 +1,195 @@
+package org.pdsd.pingpong.network;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * Counters, gauges and latency distributions of what the node does, by name.
+ *
+ * Recording is spread over STRIPES cells picked by thread id, so threads recording
+ * the same metric do not fight over one memory location. Reading sums the cells,
+ * a snapshot taken while recording may miss the samples recorded meanwhile.
+ *
+ * A snapshot is plain text, one "name value" line per metric, sorted by name. Timers
+ * show as name.count, name.p50_us, name.p99_us and name.max_us.
+ */
+public class Metrics {
+    /**
+     * Cells per metric, a power of two.
+     */
+    private static final int STRIPES = stripes();
+    /**
+     * Longs between two cells of a counter, so they sit on different cache lines.
+     */
+    private static final int PADDING = 8;
+
+    private static final Metrics SHARED = new Metrics();
+
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    /**
+     * A value read when the snapshot is taken.
+     */
+    public interface Gauge {
+        long value();
+    }
+
+    /**
+     * Count of events, or with decrement() a level such as the requests in flight.
+     */
+    public static class Counter {
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+        public void add(long delta) {
+            cells.addAndGet(stripe() * PADDING, delta);
+        }
+
+        public void increment() {
+            add(1);
+        }
+
+        public void decrement() {
+            add(-1);
+        }
+
+        public long sum() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += cells.get(i * PADDING);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Distribution of durations, one {@link LatencyHistogram} per stripe.
+     */
+    public static class Timer {
+        private final LatencyHistogram[] stripes = new LatencyHistogram[STRIPES];
+
+        Timer() {
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new LatencyHistogram();
+            }
+        }
+
+        public void record(long nanos) {
+            stripes[stripe()].record(nanos);
+        }
+
+        /**
+         * @return The stripes merged into a new histogram.
+         */
+        public LatencyHistogram merged() {
+            LatencyHistogram merged = new LatencyHistogram();
+            for (LatencyHistogram stripe : stripes) {
+                merged.add(stripe);
+            }
+            return merged;
+        }
+    }
+
+    /**
+     * @return Metrics of this process, recorded by its servers, clients and services.
+     */
+    public static Metrics shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return The counter by that name, created on first use.
+     */
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null)
+                counter = created;
+        }
+        return counter;
+    }
+
+    /**
+     * @return The timer by that name, created on first use.
+     */
+    public Timer timer(String name) {
+        Timer timer = timers.get(name);
+        if (timer == null) {
+            Timer created = new Timer();
+            timer = timers.putIfAbsent(name, created);
+            if (timer == null)
+                timer = created;
+        }
+        return timer;
+    }
+
+    /**
+     * Reports the gauge under that name from now on, in place of any previous one.
+     */
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Stops reporting the gauge, unless another one replaced it already.
+     */
+    public void remove(String name, Gauge gauge) {
+        gauges.remove(name, gauge);
+    }
+
+    /**
+     * @return Every metric by name, timers as their count and percentiles.
+     */
+    public Map<String, Long> values() {
+        Map<String, Long> values = new TreeMap<String, Long>();
+        for (Map.Entry<String, Counter> counter : counters.entrySet()) {
+            values.put(counter.getKey(), counter.getValue().sum());
+        }
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().value());
+        }
+        for (Map.Entry<String, Timer> timer : timers.entrySet()) {
+            LatencyHistogram merged = timer.getValue().merged();
+            String name = timer.getKey();
+            values.put(name + ".count", merged.count());
+            values.put(name + ".p50_us", TimeUnit.NANOSECONDS.toMicros(merged.percentileNanos(50)));
+            values.put(name + ".p99_us", TimeUnit.NANOSECONDS.toMicros(merged.percentileNanos(99)));
+            values.put(name + ".max_us", TimeUnit.NANOSECONDS.toMicros(merged.maxNanos()));
+        }
+        return values;
+    }
+
+    /**
+     * @return One "name value" line per metric, sorted by name.
+     */
+    public String snapshot() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> value : values().entrySet()) {
+            text.append(value.getKey()).append(' ').append(value.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static int stripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    private static int stripes() {
+        int wanted = Math.min(64, Runtime.getRuntime().availableProcessors() * 2);
+        int stripes = 1;
+        while (stripes < wanted) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+}
@@ -0,0 +1,646 @@
+package org.pdsd.pingpong.network;
+
+import org.pdsd.pingpong.platform.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * Non-blocking flavour of {@link TCPServer}. Connections are multiplexed by a few
+ * selector threads, so a slow or stalled client only delays itself instead of
+ * every request queued behind it.
+ *
+ * It speaks the same protocols (UTF strings and {@link Frames}), advertises itself through the same
+ * listenPort() / listenAddress() and answers through the same buildResponse().
+ * With the default inline {@link RequestExecutor} responses are built on the
+ * selector threads, handlers doing real work should get a pool with
+ * {@link RequestExecutor.OverloadPolicy#SHED} instead, such as
+ * {@link RequestExecutor#standard()}, which the launchers give their servers.
+ *
+ * Frames flagged with {@link Frames#FLAG_KEEP_ALIVE} leave the connection open for
+ * the next request, everything else is answered once and closed. Frames flagged with
+ * {@link Frames#FLAG_TAGGED} are pipelined: they are read and handed to the executor
+ * without waiting for the previous ones, and answered in the order they complete.
+ */
+public class NioTCPServer extends TCPServer {
+    private static final String LOG_TAG = "NIO Server";
+
+    public static final int DEFAULT_IO_THREADS = 1;
+    /**
+     * Connections with no traffic for this long are dropped.
+     */
+    public static final long IDLE_TIMEOUT_MS = 30000;
+
+    /**
+     * Tagged requests a single connection may have in progress, reading from it
+     * pauses above this.
+     */
+    public static final int MAX_PIPELINED = 256;
+
+    private static final int INITIAL_READ_BUFFER = 256;
+    /**
+     * UTF length prefix written by DataOutputStream.writeUTF()
+     */
+    private static final int UTF_HEADER = 2;
+
+    private final ServerSocketChannel acceptChannel;
+    private final Reactor[] reactors;
+    private int nextReactor;
+
+    /**
+     * Constructor that starts the server and binds it to the provided address.
+     * @param bindAddress Server IP address.
+     * @throws IOException
+     */
+    public NioTCPServer(InetAddress bindAddress) throws IOException {
+        this(bindAddress, DEFAULT_BACKLOG, DEFAULT_IO_THREADS);
+    }
+
+    /**
+     * @param bindAddress Server IP address.
+     * @param backlog Maximum length of the pending connections queue.
+     * @param ioThreads How many selector threads share the connections.
+     * @throws IOException
+     */
+    public NioTCPServer(InetAddress bindAddress, int backlog, int ioThreads) throws IOException {
+        this(bind(bindAddress, backlog), ioThreads);
+    }
+
+    private NioTCPServer(ServerSocketChannel channel, int ioThreads) throws IOException {
+        super(channel.socket());
+        acceptChannel = channel;
+
+        reactors = new Reactor[Math.max(1, ioThreads)];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(Selector.open());
+        }
+//        The first selector also takes care of accepting new clients.
+        acceptChannel.register(reactors[0].selector, SelectionKey.OP_ACCEPT);
+
+        for (int i = 0; i < reactors.length; i++) {
+            new Thread(reactors[i], "NioTCPServer-io-" + i).start();
+        }
+    }
+
+    private static ServerSocketChannel bind(InetAddress bindAddress, int backlog) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+//        Same as the blocking server, the port is chosen by the system and advertised afterwards
+        channel.socket().bind(new InetSocketAddress(bindAddress, 0), backlog);
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    @Override
+    public void kill() {
+        super.kill();
+        for (Reactor reactor : reactors) {
+            reactor.selector.wakeup();
+        }
+    }
+
+    /**
+     * Accepts all the pending clients and spreads them over the reactors.
+     */
+    private void acceptPending() throws IOException {
+        SocketChannel client;
+        while ((client = acceptChannel.accept()) != null) {
+            ACCEPTS.increment();
+            Log.d(LOG_TAG, "Request received from: " + client.socket().getRemoteSocketAddress());
+            client.configureBlocking(false);
+            client.socket().setTcpNoDelay(true);
+
+            Reactor target = reactors[nextReactor];
+            nextReactor = (nextReactor + 1) % reactors.length;
+            target.adopt(client);
+        }
+    }
+
+    /**
+     * @return The request, or null if it was not completely received yet.
+     */
+    private static String decodeRequest(ByteBuffer in) throws IOException {
+        if (in.position() < UTF_HEADER)
+            return null;
+        int length = UTF_HEADER + (((in.get(0) & 0xff) << 8) | (in.get(1) & 0xff));
+        if (in.position() < length)
+            return null;
+        return new DataInputStream(new ByteArrayInputStream(in.array(), 0, length)).readUTF();
+    }
+
+    private static ByteBuffer encodeResponse(String response) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(UTF_HEADER + response.length());
+        new DataOutputStream(encoded).writeUTF(response);
+        return ByteBuffer.wrap(encoded.toByteArray());
+    }
+
+    /**
+     * Per client state, lives on the reactor thread that owns the channel.
+     */
+    private static class Connection {
+        ByteBuffer in = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+        /**
+         * Payload of the frame being received, taken from the buffer pool.
+         */
+        ByteBuffer payload;
+        int payloadFlags;
+        /**
+         * Responses ready to be sent, in the order they were built.
+         */
+        final Queue<ByteBuffer[]> writes = new ArrayDeque<ByteBuffer[]>();
+        /**
+         * Tagged requests handed to the executor and not answered yet.
+         */
+        int pipelined;
+        /**
+         * An untagged request is being answered, reading waits for its response.
+         */
+        boolean awaitingResponse;
+        /**
+         * No more requests are read, the connection closes once everything is answered.
+         */
+        boolean closeWhenDone;
+        long lastActive = System.currentTimeMillis();
+
+        boolean canRead() {
+            return !awaitingResponse && !closeWhenDone && pipelined < MAX_PIPELINED;
+        }
+
+        boolean isDone() {
+            return closeWhenDone && !awaitingResponse && pipelined == 0 && writes.isEmpty();
+        }
+
+        /**
+         * Gives the pooled buffers back, the connection is done with them.
+         */
+        void release() {
+            BufferPool.shared().release(payload);
+            payload = null;
+            ByteBuffer[] response;
+            while ((response = writes.poll()) != null) {
+                releaseAll(response);
+            }
+        }
+    }
+
+    private static void releaseAll(ByteBuffer[] buffers) {
+        if (buffers != null) {
+            for (ByteBuffer buffer : buffers) {
+                BufferPool.shared().release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Produces what is sent back for a request, runs on the request executor.
+     */
+    private interface Responder {
+        ByteBuffer[] respond() throws IOException;
+
+        /**
+         * @return What is sent back instead when the request cannot be answered,
+         * null to close the connection.
+         */
+        ByteBuffer[] failed(String reason);
+    }
+
+    /**
+     * Responder of a request held in a pooled buffer, which goes back to the pool once,
+     * whether the request is answered, fails while being answered or is rejected.
+     */
+    private static abstract class PooledResponder implements Responder {
+        final ByteBuffer request;
+        private boolean released;
+
+        PooledResponder(ByteBuffer request) {
+            this.request = request;
+        }
+
+        /**
+         * Only called from the thread running the job, or rejecting it.
+         */
+        void release() {
+            if (released)
+                return;
+            released = true;
+            BufferPool.shared().release(request);
+        }
+    }
+
+    /**
+     * Selector loop, it owns all the connections registered with its selector.
+     */
+    private class Reactor implements Runnable {
+        private final Selector selector;
+        /**
+         * Work handed over by other threads, it has to run on this reactor's thread.
+         */
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private volatile Thread thread;
+        private long lastSweep = System.currentTimeMillis();
+
+        Reactor(Selector selector) {
+            this.selector = selector;
+        }
+
+        void adopt(final SocketChannel client) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        client.register(selector, SelectionKey.OP_READ, new Connection());
+                    } catch (IOException e) {
+                        Log.e(LOG_TAG, "Cannot register client: " + e.getMessage());
+                        try {
+                            client.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * Runs the task on this reactor's thread, right away if already on it.
+         */
+        void post(Runnable task) {
+            if (Thread.currentThread() == thread) {
+                task.run();
+            } else {
+                tasks.add(task);
+                selector.wakeup();
+            }
+        }
+
+        public void run() {
+            thread = Thread.currentThread();
+            try {
+//                As long as the server was not killed, loop and serve whatever is ready
+                while (isAlive()) {
+                    selector.select(IDLE_TIMEOUT_MS / 2);
+                    runTasks();
+
+                    Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+                    while (ready.hasNext()) {
+                        SelectionKey key = ready.next();
+                        ready.remove();
+                        handle(key);
+                    }
+                    sweepIdle();
+                }
+            } catch (IOException ioe) {
+                Log.e(LOG_TAG, "Error in NioTCPServer: " + ioe.getMessage());
+            } finally {
+//                When killed, release resources.
+                for (SelectionKey key : selector.keys()) {
+                    closeQuietly(key);
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, e.getMessage());
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Error in reactor task: " + e);
+                }
+            }
+        }
+
+        private void handle(SelectionKey key) throws IOException {
+            if (!key.isValid())
+                return;
+            if (key.isAcceptable()) {
+                acceptPending();
+                return;
+            }
+
+            Connection connection = (Connection) key.attachment();
+            SocketChannel channel = (SocketChannel) key.channel();
+            connection.lastActive = System.currentTimeMillis();
+            try {
+                if (key.isReadable()) {
+                    onReadable(key, channel, connection);
+                } else if (key.isWritable()) {
+                    onWritable(key, channel, connection);
+                }
+            } catch (IOException e) {
+//                A broken client only costs its own connection
+                Log.e(LOG_TAG, "Error serving " + channel.socket().getRemoteSocketAddress() + ": " + e.getMessage());
+                closeQuietly(key);
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Error serving " + channel.socket().getRemoteSocketAddress() + ": " + e);
+                closeQuietly(key);
+            }
+        }
+
+        private void onReadable(SelectionKey key, SocketChannel channel, Connection connection) throws IOException {
+            int read;
+            if (connection.payload != null) {
+                read = channel.read(connection.payload);
+            } else {
+                if (!connection.in.hasRemaining()) {
+                    ByteBuffer larger = ByteBuffer.allocate(connection.in.capacity() * 2);
+                    connection.in.flip();
+                    larger.put(connection.in);
+                    connection.in = larger;
+                }
+                read = channel.read(connection.in);
+            }
+            if (read > 0)
+                BYTES_IN.add(read);
+            process(key, connection, read < 0);
+        }
+
+        /**
+         * Dispatches every complete request held by the buffered input, as long as
+         * the connection accepts more requests.
+         */
+        private void process(SelectionKey key, Connection connection, boolean endOfStream) throws IOException {
+            while (connection.canRead()) {
+                if (connection.payload == null) {
+                    if (Frames.isFrame(connection.in)) {
+                        if (connection.in.position() < Frames.HEADER_LENGTH)
+                            break;
+                        startPayload(connection);
+                    } else {
+                        String request = decodeRequest(connection.in);
+                        if (request == null)
+                            break;
+                        Log.d(LOG_TAG, "Incoming request " + request);
+//                        A UTF request is the only one on its connection
+                        connection.awaitingResponse = true;
+                        connection.closeWhenDone = true;
+                        dispatch(key, connection, utfResponder(request), false);
+                        break;
+                    }
+                }
+                if (connection.payload.hasRemaining())
+                    break;
+
+                ByteBuffer request = connection.payload;
+                connection.payload = null;
+                request.flip();
+                if ((connection.payloadFlags & Frames.FLAG_TAGGED) != 0) {
+                    if (request.remaining() < Frames.TAG_LENGTH) {
+                        BufferPool.shared().release(request);
+                        throw new IOException("Tagged frame without a request id");
+                    }
+//                    Pipelined, keep reading while this one is being answered
+                    connection.pipelined++;
+                    dispatch(key, connection, taggedResponder(request), true);
+                } else {
+                    boolean keepAlive = (connection.payloadFlags & Frames.FLAG_KEEP_ALIVE) != 0;
+                    connection.awaitingResponse = true;
+                    connection.closeWhenDone = !keepAlive;
+                    dispatch(key, connection, frameResponder(request, keepAlive), false);
+                }
+            }
+
+            if (endOfStream && !connection.closeWhenDone) {
+                if (connection.payload != null || connection.in.position() > 0)
+                    Log.d(LOG_TAG, "Client left before completing its request");
+//                Whatever was fully received still gets its response
+                connection.closeWhenDone = true;
+            }
+            if (connection.isDone()) {
+                closeQuietly(key);
+            } else if (key.isValid()) {
+                updateInterest(key, connection);
+            }
+        }
+
+        private void updateInterest(SelectionKey key, Connection connection) {
+            int ops = 0;
+            if (connection.canRead())
+                ops |= SelectionKey.OP_READ;
+            if (!connection.writes.isEmpty())
+                ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        /**
+         * The frame header is in, the payload goes straight to a pooled buffer.
+         * Bytes past the payload belong to the next request and stay buffered.
+         */
+        private void startPayload(Connection connection) throws IOException {
+            ByteBuffer in = connection.in;
+            connection.payloadFlags = Frames.flags(in, 0);
+            connection.payload = BufferPool.shared().acquire(Frames.payloadLength(in, 0));
+
+            in.flip();
+            in.position(Frames.HEADER_LENGTH);
+            int end = in.limit();
+            in.limit(Math.min(end, Frames.HEADER_LENGTH + connection.payload.remaining()));
+            connection.payload.put(in);
+            in.limit(end);
+            in.compact();
+        }
+
+        private Responder utfResponder(final String request) {
+            return new Responder() {
+                @Override
+                public ByteBuffer[] respond() throws IOException {
+                    return new ByteBuffer[] { encodeResponse(answer(request)) };
+                }
+
+                @Override
+                public ByteBuffer[] failed(String reason) {
+                    return null;
+                }
+            };
+        }
+
+        private Responder frameResponder(final ByteBuffer request, final boolean keepAlive) {
+            return new PooledResponder(request) {
+                @Override
+                public ByteBuffer[] respond() throws IOException {
+                    ByteBuffer response;
+                    try {
+                        response = answer(request);
+                    } finally {
+                        release();
+                    }
+                    ByteBuffer header = ByteBuffer.allocate(Frames.HEADER_LENGTH);
+                    Frames.putHeader(header, keepAlive ? Frames.FLAG_KEEP_ALIVE : 0, response.remaining());
+                    header.flip();
+                    return new ByteBuffer[] { header, response };
+                }
+
+                @Override
+                public ByteBuffer[] failed(String reason) {
+                    release();
+                    return null;
+                }
+            };
+        }
+
+        private Responder taggedResponder(final ByteBuffer request) {
+            final int id = request.getInt();
+            return new PooledResponder(request) {
+                @Override
+                public ByteBuffer[] respond() throws IOException {
+                    ByteBuffer response;
+                    try {
+                        response = answer(request);
+                    } finally {
+                        release();
+                    }
+                    return tagged(Frames.FLAG_KEEP_ALIVE, response);
+                }
+
+                @Override
+                public ByteBuffer[] failed(String reason) {
+                    release();
+//                    Only this request fails, the others on the connection carry on
+                    return tagged(Frames.FLAG_KEEP_ALIVE | Frames.FLAG_ERROR,
+                            Frames.encodeUtf8(reason, BufferPool.shared()));
+                }
+
+                private ByteBuffer[] tagged(int flags, ByteBuffer payload) {
+                    ByteBuffer header = ByteBuffer.allocate(Frames.HEADER_LENGTH + Frames.TAG_LENGTH);
+                    Frames.putTaggedHeader(header, flags, id, payload.remaining());
+                    header.flip();
+                    return new ByteBuffer[] { header, payload };
+                }
+            };
+        }
+
+        /**
+         * Builds the response on the request executor and comes back to this thread to send it.
+         */
+        private void dispatch(final SelectionKey key, final Connection connection,
+                              final Responder responder, final boolean tagged) {
+            requestExecutor().execute(new RequestExecutor.Job() {
+                @Override
+                public void run() {
+                    ByteBuffer[] response;
+                    try {
+                        response = responder.respond();
+                    } catch (IOException e) {
+                        Log.e(LOG_TAG, "Cannot encode response: " + e.getMessage());
+                        response = responder.failed("cannot encode response");
+                    } catch (RuntimeException e) {
+                        Log.e(LOG_TAG, "Error building response: " + e.getMessage());
+                        response = responder.failed("error building response");
+                    }
+                    respond(key, connection, response, tagged);
+                }
+
+                @Override
+                public void reject(String reason) {
+                    Log.w(LOG_TAG, "Request dropped, " + reason);
+                    respond(key, connection, responder.failed(reason), tagged);
+                }
+            });
+        }
+
+        /**
+         * Queues a response built on any thread, null closes the connection.
+         */
+        private void respond(final SelectionKey key, final Connection connection,
+                             final ByteBuffer[] response, final boolean tagged) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!key.isValid()) {
+                        releaseAll(response);
+                        return;
+                    }
+                    if (response == null) {
+                        closeQuietly(key);
+                        return;
+                    }
+                    if (tagged) {
+                        connection.pipelined--;
+                    } else {
+                        connection.awaitingResponse = false;
+                    }
+                    connection.writes.add(response);
+                    try {
+                        onWritable(key, (SocketChannel) key.channel(), connection);
+//                        Reading may have been paused, requests could be waiting in the buffer
+                        if (key.isValid())
+                            process(key, connection, false);
+                    } catch (IOException e) {
+                        Log.e(LOG_TAG, "Error sending response: " + e.getMessage());
+                        closeQuietly(key);
+                    }
+                }
+            });
+        }
+
+        private void onWritable(SelectionKey key, SocketChannel channel, Connection connection) throws IOException {
+            ByteBuffer[] head;
+            while ((head = connection.writes.peek()) != null) {
+                BYTES_OUT.add(channel.write(head));
+//                Gathering writes drain the buffers in order
+                if (head[head.length - 1].hasRemaining())
+                    break;
+                releaseAll(connection.writes.poll());
+                Log.d(LOG_TAG, "Sent response to " + channel.socket().getRemoteSocketAddress());
+            }
+
+            if (connection.isDone()) {
+                closeQuietly(key);
+            } else {
+                updateInterest(key, connection);
+            }
+        }
+
+        private void sweepIdle() {
+            long now = System.currentTimeMillis();
+            if (now - lastSweep < IDLE_TIMEOUT_MS / 2)
+                return;
+            lastSweep = now;
+            for (SelectionKey key : selector.keys()) {
+                Object attachment = key.attachment();
+//                Clients waiting for a worker are bounded by the executor deadline, not by this
+                if (attachment instanceof Connection && isIdle((Connection) attachment, now)) {
+                    Log.d(LOG_TAG, "Dropping idle client");
+                    closeQuietly(key);
+                }
+            }
+        }
+    }
+
+    private static boolean isIdle(Connection connection, long now) {
+        return !connection.awaitingResponse && connection.pipelined == 0
+                && now - connection.lastActive > IDLE_TIMEOUT_MS;
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        if (key.attachment() instanceof Connection) {
+            ((Connection) key.attachment()).release();
+        }
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package org.pdsd.pingpong.network;
+
+import org.pdsd.pingpong.platform.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * A single connection carrying many requests at once. Every request is sent as a
+ * tagged frame and answered through a future, in whatever order the server
+ * completes them. Sending never waits for responses, only for the socket and for
+ * the in-flight limit.
+ *
+ * Responses are read by a dedicated thread, listeners of the returned futures run on it.
+ * A server that stays silent for longer than the timeout while requests wait for it
+ * is given up on: the connection closes and those requests fail. An idle connection
+ * stays open.
+ */
+public class PipelinedConnection {
+    private static final String LOG_TAG = "Pipelined Connection";
+
+    /**
+     * Requests allowed in flight, same as what the server reads ahead.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = NioTCPServer.MAX_PIPELINED;
+
+    private final SocketChannel channel;
+    private final int timeoutMs;
+    private final BufferPool buffers;
+    private final Semaphore inFlight;
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final ConcurrentMap<Integer, ResponseFuture<ByteBuffer>> pending =
+            new ConcurrentHashMap<Integer, ResponseFuture<ByteBuffer>>();
+
+    /**
+     * Header and request id of the frame being sent, guarded by the array itself.
+     */
+    private final ByteBuffer[] outgoing = new ByteBuffer[] {
+            ByteBuffer.allocateDirect(Frames.HEADER_LENGTH + Frames.TAG_LENGTH), null };
+    private volatile IOException broken;
+    /**
+     * When a request was last sent or a response last came in.
+     */
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    private PipelinedConnection(SocketChannel channel, int timeoutMs, BufferPool buffers, int maxInFlight) {
+        this.channel = channel;
+        this.timeoutMs = timeoutMs;
+        this.buffers = buffers;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Connects to a frame server and starts reading its responses, giving up on the
+     * connection after TCPClient.DEFAULT_TIMEOUT_MS.
+     * @param destination IP address
+     * @param port Port
+     */
+    public static PipelinedConnection open(InetAddress destination, int port) throws IOException {
+        return open(destination, port, TCPClient.DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * Same as open(), with an explicit limit.
+     * @param timeoutMs Limit for connecting, then for the server to go silent while requests wait.
+     * @throws java.net.SocketTimeoutException If the peer did not accept the connection in time.
+     */
+    public static PipelinedConnection open(InetAddress destination, int port, int timeoutMs) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().connect(new InetSocketAddress(destination, port), timeoutMs);
+            channel.socket().setSoTimeout(timeoutMs);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        final PipelinedConnection connection = new PipelinedConnection(channel, timeoutMs, BufferPool.shared(),
+                DEFAULT_MAX_IN_FLIGHT);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                connection.readResponses();
+            }
+        }, "PipelinedConnection-" + destination.getHostAddress() + ":" + port);
+        reader.setDaemon(true);
+        reader.start();
+        return connection;
+    }
+
+    /**
+     * Sends a request without waiting for the previous ones to be answered.
+     * @param payload Request, consumed from its position to its limit.
+     * @return Future response payload, in a pooled buffer. Release it when done.
+     * A future that gets cancelled releases its response by itself.
+     */
+    public ResponseFuture<ByteBuffer> send(ByteBuffer payload) {
+        final ResponseFuture<ByteBuffer> response = new ResponseFuture<ByteBuffer>();
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response.fail(e);
+            return response;
+        }
+
+        final Integer id = nextId.getAndIncrement();
+        pending.put(id, response);
+        lastActivity = System.currentTimeMillis();
+        response.addListener(new ResponseFuture.Listener<ByteBuffer>() {
+            @Override
+            public void done(ResponseFuture<ByteBuffer> future) {
+                pending.remove(id);
+                inFlight.release();
+            }
+        });
+
+        try {
+            if (broken != null)
+                throw broken;
+            synchronized (outgoing) {
+                outgoing[0].clear();
+                Frames.putTaggedHeader(outgoing[0], Frames.FLAG_KEEP_ALIVE, id, payload.remaining());
+                outgoing[0].flip();
+                outgoing[1] = payload;
+                try {
+                    while (outgoing[0].hasRemaining() || payload.hasRemaining()) {
+                        channel.write(outgoing);
+                    }
+                } finally {
+                    outgoing[1] = null;
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+        return response;
+    }
+
+    /**
+     * Same as send(ByteBuffer), for text requests and responses.
+     */
+    public ResponseFuture<String> send(String request) {
+        final ResponseFuture<String> text = new ResponseFuture<String>();
+        ByteBuffer encoded = Frames.encodeUtf8(request, buffers);
+        ResponseFuture<ByteBuffer> raw;
+        try {
+            raw = send(encoded);
+        } finally {
+            buffers.release(encoded);
+        }
+        raw.addListener(new ResponseFuture.Listener<ByteBuffer>() {
+            @Override
+            public void done(ResponseFuture<ByteBuffer> future) {
+                ByteBuffer response = future.getNow();
+                if (response != null) {
+                    text.complete(Frames.decodeUtf8(response));
+                    buffers.release(response);
+                } else {
+                    text.fail(future.getFailure());
+                }
+            }
+        });
+        return text;
+    }
+
+    /**
+     * @return Requests sent and not answered yet.
+     */
+    public int inFlight() {
+        return pending.size();
+    }
+
+    /**
+     * @return false once the connection failed or was closed, every later request fails.
+     */
+    public boolean isOpen() {
+        return broken == null;
+    }
+
+    /**
+     * Closes the connection, requests still in flight fail.
+     */
+    public void close() {
+        fail(new IOException("Connection closed"));
+    }
+
+    private void readResponses() {
+        ByteBuffer header = ByteBuffer.allocate(Frames.HEADER_LENGTH);
+        try {
+//            Reads on the channel itself would ignore the timeout
+            ReadableByteChannel responses = Channels.newChannel(channel.socket().getInputStream());
+            while (broken == null) {
+                int length;
+                try {
+                    length = Frames.readHeader(responses, header);
+                } catch (SocketTimeoutException e) {
+//                    Silence between frames only counts while requests wait and nothing moved for a while
+                    if (header.position() == 0
+                            && (pending.isEmpty() || System.currentTimeMillis() - lastActivity < timeoutMs))
+                        continue;
+                    throw new SocketTimeoutException("No response for " + timeoutMs + "ms, "
+                            + pending.size() + " requests waiting");
+                }
+                int flags = Frames.flags(header, 0);
+                ByteBuffer payload = Frames.readPayload(responses, length, buffers);
+                lastActivity = System.currentTimeMillis();
+                if ((flags & Frames.FLAG_TAGGED) == 0 || payload.remaining() < Frames.TAG_LENGTH) {
+                    buffers.release(payload);
+                    throw new IOException("Untagged response on a pipelined connection");
+                }
+
+                ResponseFuture<ByteBuffer> response = pending.get(payload.getInt());
+                if ((flags & Frames.FLAG_ERROR) != 0) {
+                    String reason = Frames.decodeUtf8(payload);
+                    buffers.release(payload);
+                    if (response != null)
+                        response.fail(new IOException("Request failed on the server: " + reason));
+                } else if (response == null || !response.complete(payload)) {
+//                    Nobody waits for it anymore, it was cancelled
+                    buffers.release(payload);
+                }
+            }
+        } catch (IOException e) {
+            if (broken == null)
+                Log.d(LOG_TAG, "Connection lost: " + e.getMessage());
+            fail(e);
+        }
+    }
+
+    private void fail(IOException cause) {
+        synchronized (this) {
+            if (broken == null)
+                broken = cause;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.getMessage());
+        }
+        for (ResponseFuture<ByteBuffer> response : pending.values()) {
+            response.fail(broken);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package org.pdsd.pingpong.network;
+
+import org.pdsd.pingpong.platform.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * Decides on which thread a request is handled and what happens when there are
+ * more requests than the node can keep up with.
+ *
+ * At most maxPending requests are admitted at once (running or queued), anything
+ * above that is handled according to the {@link OverloadPolicy}. Requests that
+ * waited in the queue longer than the queue deadline are rejected instead of run,
+ * their client has most likely given up anyway. The queue deadline only bounds the
+ * wait: once a request has started, it runs to completion however long it takes.
+ */
+public class RequestExecutor {
+    private static final String LOG_TAG = "Request Executor";
+
+    /**
+     * Workers of standard(), enough to keep the cores busy when requests block a little.
+     */
+    public static final int DEFAULT_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    public static final int DEFAULT_QUEUE_LIMIT = 256;
+    /**
+     * Past the clients' own timeout nobody is waiting for the response anymore.
+     */
+    public static final long DEFAULT_QUEUE_DEADLINE_MS = TCPClient.DEFAULT_TIMEOUT_MS;
+
+    /**
+     * What to do with a request that exceeds the admission limit.
+     */
+    public enum OverloadPolicy {
+        /**
+         * Reject it right away, the client sees its connection closed.
+         */
+        SHED,
+        /**
+         * Run it on the submitting thread. For the blocking server this slows down the
+         * accept loop and pushes back on clients through the listen backlog. Never use
+         * it with a selector thread.
+         */
+        CALLER_RUNS
+    }
+
+    /**
+     * A unit of work handed over by a server.
+     */
+    public interface Job {
+        /**
+         * Handles the request.
+         */
+        void run();
+
+        /**
+         * Called instead of run() when the request was not admitted or expired.
+         * @param reason Human readable cause, for logging.
+         */
+        void reject(String reason);
+    }
+
+    private final Executor executor;
+    private final Semaphore admitted;
+    private final int maxPending;
+    private final long queueDeadlineMs;
+    private final OverloadPolicy policy;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    /**
+     * Admitted jobs waiting for the executor. Jobs run by the caller never wait, they
+     * only count as in flight.
+     */
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong shed = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    /**
+     * @param executor Threads running the requests. It is never asked to hold more
+     *                 than maxPending tasks.
+     * @param maxPending Admission limit, running plus queued requests.
+     * @param queueDeadlineMs How long a request may wait before it starts, 0 for no limit.
+     * @param policy What happens to requests above the admission limit.
+     */
+    public RequestExecutor(Executor executor, int maxPending, long queueDeadlineMs, OverloadPolicy policy) {
+        this.executor = executor;
+        this.maxPending = maxPending;
+        this.admitted = new Semaphore(maxPending);
+        this.queueDeadlineMs = queueDeadlineMs;
+        this.policy = policy;
+    }
+
+    /**
+     * Requests are handled right on the thread that read them, which is what the
+     * servers did before having executors.
+     */
+    public static RequestExecutor inline() {
+        return new RequestExecutor(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        }, Integer.MAX_VALUE, 0, OverloadPolicy.CALLER_RUNS);
+    }
+
+    /**
+     * What the launchers run their servers with: DEFAULT_THREADS workers, shedding what
+     * does not fit in their queue. Safe for the selector server, whose thread must not
+     * build responses itself.
+     */
+    public static RequestExecutor standard() {
+        return bounded(DEFAULT_THREADS, DEFAULT_QUEUE_LIMIT, DEFAULT_QUEUE_DEADLINE_MS, OverloadPolicy.SHED);
+    }
+
+    /**
+     * A fixed pool of worker threads with a bounded queue in front of it.
+     * @param threads Number of workers.
+     * @param queueLimit Requests allowed to wait for a worker.
+     * @param queueDeadlineMs How long a request may wait before it starts, 0 for no limit.
+     * @param policy What happens to requests above threads + queueLimit.
+     */
+    public static RequestExecutor bounded(int threads, int queueLimit, long queueDeadlineMs, OverloadPolicy policy) {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+//                The semaphore guarantees the queue never overflows
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueLimit)),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread worker = new Thread(runnable, "RequestExecutor-" + count.getAndIncrement());
+                        worker.setDaemon(true);
+                        return worker;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return new RequestExecutor(pool, threads + Math.max(0, queueLimit), queueDeadlineMs, policy);
+    }
+
+    /**
+     * Runs the job, now or later, or rejects it.
+     */
+    public void execute(final Job job) {
+        if (!admitted.tryAcquire()) {
+            if (policy == OverloadPolicy.SHED) {
+                shed.incrementAndGet();
+                job.reject("overloaded, " + maxPending + " requests pending");
+            } else {
+                runAdmitted(job);
+            }
+            return;
+        }
+
+        final long submitted = System.currentTimeMillis();
+        queued.incrementAndGet();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    queued.decrementAndGet();
+                    try {
+                        if (queueDeadlineMs > 0 && System.currentTimeMillis() - submitted > queueDeadlineMs) {
+                            expired.incrementAndGet();
+                            job.reject("queue deadline of " + queueDeadlineMs + "ms expired");
+                        } else {
+                            runAdmitted(job);
+                        }
+                    } finally {
+                        admitted.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            admitted.release();
+            shed.incrementAndGet();
+            job.reject("executor is shut down");
+        }
+    }
+
+    private void runAdmitted(Job job) {
+        inFlight.incrementAndGet();
+        try {
+            job.run();
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Request failed: " + e.getMessage());
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return Requests currently being handled.
+     */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return Requests admitted but not started yet.
+     */
+    public int queued() {
+        return queued.get();
+    }
+
+    /**
+     * @return Requests rejected because of the admission limit.
+     */
+    public long shedCount() {
+        return shed.get();
+    }
+
+    /**
+     * @return Requests rejected because they waited past the queue deadline.
+     */
+    public long expiredCount() {
+        return expired.get();
+    }
+}
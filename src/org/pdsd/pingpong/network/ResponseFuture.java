@@ -0,0 +1,144 @@
+package org.pdsd.pingpong.network;
+
+import org.pdsd.pingpong.platform.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * Result of a request that is answered later, completed by the I/O code that
+ * receives the response. Listeners are called once, on the completing thread,
+ * or right away when added to a future that is already done.
+ */
+public class ResponseFuture<V> implements Future<V> {
+    private static final String LOG_TAG = "Response Future";
+
+    public interface Listener<V> {
+        void done(ResponseFuture<V> future);
+    }
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private List<Listener<V>> listeners = new ArrayList<Listener<V>>(1);
+    private V value;
+    private Throwable failure;
+    private boolean cancelled;
+
+    /**
+     * @return true if this call completed the future, false if it was already done.
+     */
+    public boolean complete(V result) {
+        return finish(result, null, false);
+    }
+
+    /**
+     * @return true if this call completed the future, false if it was already done.
+     */
+    public boolean fail(Throwable cause) {
+        return finish(null, cause, false);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(null, new CancellationException(), true);
+    }
+
+    private boolean finish(V result, Throwable cause, boolean cancel) {
+        List<Listener<V>> toNotify;
+        synchronized (this) {
+            if (listeners == null)
+                return false;
+            value = result;
+            failure = cause;
+            cancelled = cancel;
+            toNotify = listeners;
+            listeners = null;
+        }
+        done.countDown();
+        for (Listener<V> listener : toNotify) {
+            notifyListener(listener);
+        }
+        return true;
+    }
+
+    public void addListener(Listener<V> listener) {
+        synchronized (this) {
+            if (listeners != null) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    /**
+     * A failing listener must not keep the next ones from running, they may hold permits or buffers.
+     */
+    private void notifyListener(Listener<V> listener) {
+        try {
+            listener.done(this);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Listener failed: " + e);
+        }
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * @return true if done without a result.
+     */
+    public synchronized boolean isFailed() {
+        return isDone() && failure != null;
+    }
+
+    /**
+     * @return Why the future failed, null if it did not.
+     */
+    public synchronized Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return The result if the future completed, null otherwise. Never blocks.
+     */
+    public synchronized V getNow() {
+        return value;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit))
+            throw new TimeoutException();
+        return result();
+    }
+
+    private synchronized V result() throws ExecutionException {
+        if (cancelled)
+            throw (CancellationException) failure;
+        if (failure != null)
+            throw new ExecutionException(failure);
+        return value;
+    }
+}
@@ -0,0 +1,69 @@
+package org.pdsd.pingpong.network;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * How busy a {@link TCPServer} was lately: requests being handled, requests waiting
+ * for a thread, and the p99 time spent building responses. Small enough to travel in
+ * a TXT record, as "inFlight,queued,p99us".
+ */
+public class ServerLoad {
+    /**
+     * Service times closer than this ratio count as the same load.
+     */
+    private static final double SIGNIFICANT_RATIO = 1.25;
+
+    public final int inFlight;
+    public final int queued;
+    public final long p99Micros;
+
+    public ServerLoad(int inFlight, int queued, long p99Micros) {
+        this.inFlight = inFlight;
+        this.queued = queued;
+        this.p99Micros = p99Micros;
+    }
+
+    /**
+     * @return Requests the server already has on its hands.
+     */
+    public int pending() {
+        return inFlight + queued;
+    }
+
+    /**
+     * @return True if the difference is worth telling the other peers about.
+     */
+    public boolean differsFrom(ServerLoad other) {
+        if (other == null || inFlight != other.inFlight || queued != other.queued)
+            return true;
+        long low = Math.min(p99Micros, other.p99Micros);
+        long high = Math.max(p99Micros, other.p99Micros);
+        return high > Math.max(1, low) * SIGNIFICANT_RATIO;
+    }
+
+    public String encode() {
+        return inFlight + "," + queued + "," + p99Micros;
+    }
+
+    /**
+     * @return The load, null if the text is missing or not an encoded load.
+     */
+    public static ServerLoad parse(String encoded) {
+        if (encoded == null)
+            return null;
+        String[] parts = encoded.split(",");
+        if (parts.length != 3)
+            return null;
+        try {
+            return new ServerLoad(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Long.parseLong(parts[2]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "in flight " + inFlight + ", queued " + queued + ", p99 " + p99Micros + "us";
+    }
+}
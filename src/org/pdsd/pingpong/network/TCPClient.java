@@ -2,7 +2,12 @@ package org.pdsd.pingpong.network;
 
 import java.io.*;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
 
 /**
  * Author: Radu Stoenescu
@@ -12,6 +17,17 @@ import java.net.Socket;
  * receiving its response.
  */
 public class TCPClient {
+    /**
+     * How long connecting, and then waiting for the response, may take.
+     */
+    public static final int DEFAULT_TIMEOUT_MS = 5000;
+
+    static final Metrics.Counter REQUESTS = Metrics.shared().counter("client.requests");
+    static final Metrics.Counter FAILURES = Metrics.shared().counter("client.failures");
+    static final Metrics.Counter CONNECTS = Metrics.shared().counter("client.connects");
+    static final Metrics.Counter BYTES_IN = Metrics.shared().counter("client.bytes_in");
+    static final Metrics.Counter BYTES_OUT = Metrics.shared().counter("client.bytes_out");
+    static final Metrics.Timer LATENCY = Metrics.shared().timer("client.latency");
 
     /**
      * Sends a string via a TCP socket (in UTF format), waits for a response and returns it (also UTF string).
@@ -22,19 +38,40 @@ public class TCPClient {
      * @throws IOException
      */
     public static String sendTo(String str, InetAddress destination, int port) throws IOException {
+        return sendTo(str, destination, port, DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * Same as sendTo(), with explicit timeouts.
+     * @param timeoutMs Limit for connecting, and then for each read of the response.
+     * @throws java.net.SocketTimeoutException If the peer did not connect or answer in time.
+     */
+    public static String sendTo(String str, InetAddress destination, int port, int timeoutMs) throws IOException {
         Socket socket = null;
         DataOutputStream writer;
         DataInputStream reader;
+        long started = System.nanoTime();
+        REQUESTS.increment();
 
         try {
-            socket = new Socket(destination, port);
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(destination, port), timeoutMs);
+            CONNECTS.increment();
+            socket.setSoTimeout(timeoutMs);
             writer = new DataOutputStream(socket.getOutputStream());
             writer.writeUTF(str);
+            BYTES_OUT.add(writer.size());
 //            Close the output stream to signal there is no more data to be send.
             socket.shutdownOutput();
 //            Read response.
             reader = new DataInputStream(socket.getInputStream());
-            return reader.readUTF();
+            String response = reader.readUTF();
+            BYTES_IN.add(TCPServer.utfLength(response));
+            LATENCY.record(System.nanoTime() - started);
+            return response;
+        } catch (IOException e) {
+            FAILURES.increment();
+            throw e;
         } finally {
             if (socket != null) {
                 socket.close();
@@ -42,6 +79,90 @@ public class TCPClient {
         }
     }
 
+    /**
+     * Same exchange as sendTo(), using the binary frame format, which has no size limit.
+     * The connection comes from, and goes back to, the shared {@link ConnectionPool}.
+     * The peer must be a server that understands {@link Frames}.
+     * @param str Request
+     * @param destination IP address
+     * @param port Port
+     * @return Response from the other host.
+     * @throws IOException
+     */
+    public static String sendFrame(String str, InetAddress destination, int port) throws IOException {
+        BufferPool pool = BufferPool.shared();
+        ByteBuffer request = Frames.encodeUtf8(str, pool);
+        ByteBuffer response;
+        long started = System.nanoTime();
+        REQUESTS.increment();
+        BYTES_OUT.add(Frames.HEADER_LENGTH + request.remaining());
+        try {
+            response = ConnectionPool.shared().exchange(request, destination, port);
+        } catch (IOException e) {
+            FAILURES.increment();
+            throw e;
+        } finally {
+            pool.release(request);
+        }
+        BYTES_IN.add(Frames.HEADER_LENGTH + response.remaining());
+        LATENCY.record(System.nanoTime() - started);
+        try {
+            return Frames.decodeUtf8(response);
+        } finally {
+            pool.release(response);
+        }
+    }
+
+    /**
+     * Sends a binary frame on a new connection and waits for the response frame. The
+     * payload is handed to the socket as it is, a direct buffer is not copied.
+     * @param payload Request, consumed from its position to its limit.
+     * @param destination IP address
+     * @param port Port
+     * @return Response payload, in a buffer from {@link BufferPool#shared()}. Release it when done.
+     * @throws IOException
+     */
+    public static ByteBuffer exchange(ByteBuffer payload, InetAddress destination, int port) throws IOException {
+        return exchange(payload, destination, port, DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * Same as exchange(payload, destination, port), with a limit for connecting and for each read.
+     * @throws java.net.SocketTimeoutException If the peer did not connect or answer in time.
+     */
+    public static ByteBuffer exchange(ByteBuffer payload, InetAddress destination, int port, int timeoutMs)
+            throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        long started = System.nanoTime();
+        REQUESTS.increment();
+        try {
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().connect(new InetSocketAddress(destination, port), timeoutMs);
+            channel.socket().setSoTimeout(timeoutMs);
+            CONNECTS.increment();
+            BYTES_OUT.add(Frames.HEADER_LENGTH + payload.remaining());
+            Frames.write(channel, 0, payload);
+//            Reads on the channel itself would ignore the timeout
+            ReadableByteChannel responses = Channels.newChannel(channel.socket().getInputStream());
+            ByteBuffer response = Frames.read(responses, BufferPool.shared());
+            BYTES_IN.add(Frames.HEADER_LENGTH + response.remaining());
+            LATENCY.record(System.nanoTime() - started);
+            return response;
+        } catch (IOException e) {
+            FAILURES.increment();
+            throw e;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Asks a server for the metrics of its process, see {@link Metrics#snapshot()}.
+     */
+    public static String metrics(InetAddress destination, int port) throws IOException {
+        return sendFrame(TCPServer.RESERVED_PREFIX + TCPServer.METRICS_REQUEST, destination, port);
+    }
+
     /**
      * Convenience wrapper method, it builds an INetAddr form a string host name.
      * @param str
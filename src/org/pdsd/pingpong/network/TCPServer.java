@@ -1,13 +1,18 @@
 package org.pdsd.pingpong.network;
 
-import android.util.Log;
+import org.pdsd.pingpong.platform.Log;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Author: Radu Stoenescu
@@ -18,10 +23,49 @@ import java.net.Socket;
 public class TCPServer {
     private static final String LOG_TAG = "Server";
     private static final String RESPONSE = "Pong";
+    /**
+     * Pending connections queue length, used when none is given explicitly.
+     */
+    public static final int DEFAULT_BACKLOG = 128;
+    /**
+     * A client that stays silent for this long is dropped.
+     */
+    public static final int CLIENT_TIMEOUT_MS = 10000;
+    /**
+     * Requests starting with this are the nodes' own, such as peer table exchanges. They
+     * go to the handler registered under the word that follows, not to buildResponse().
+     */
+    public static final String RESERVED_PREFIX = "\u0000";
+    /**
+     * Reserved request every server answers with Metrics.shared().snapshot().
+     */
+    public static final String METRICS_REQUEST = "metrics";
+
+    static final Metrics.Counter ACCEPTS = Metrics.shared().counter("server.accepts");
+    static final Metrics.Counter BYTES_IN = Metrics.shared().counter("server.bytes_in");
+    static final Metrics.Counter BYTES_OUT = Metrics.shared().counter("server.bytes_out");
+    static final Metrics.Counter IN_FLIGHT = Metrics.shared().counter("server.in_flight");
+    static final Metrics.Timer LATENCY = Metrics.shared().timer("server.latency");
+
+    /**
+     * Answers one kind of reserved request.
+     */
+    public interface ReservedHandler {
+        /**
+         * @param request The whole request, prefix and name included.
+         */
+        String handle(String request);
+    }
 
     private ServerSocket serverSocket;
-    private Socket clientSocket;
     private volatile boolean alive;
+    private volatile RequestExecutor requestExecutor = RequestExecutor.inline();
+    /**
+     * Time spent in buildResponse() since the last sampleLoad().
+     */
+    private volatile LatencyHistogram serviceTimes = new LatencyHistogram();
+    private volatile long lastP99Micros;
+    private final Map<String, ReservedHandler> reserved = new ConcurrentHashMap<String, ReservedHandler>();
 
     /**
      * @return local port on which the server runs.
@@ -49,9 +93,18 @@ public class TCPServer {
      * @throws IOException
      */
     public TCPServer(final InetAddress bindAddress) throws IOException {
+        this(bindAddress, DEFAULT_BACKLOG);
+    }
+
+    /**
+     * Constructor that starts the server and binds it to the provided address.
+     * @param bindAddress Server IP address.
+     * @param backlog Maximum length of the pending connections queue.
+     * @throws IOException
+     */
+    public TCPServer(final InetAddress bindAddress, int backlog) throws IOException {
 //        We are not using a predefined port, it will be provided by the system and then advertised to other peers
-        serverSocket = new ServerSocket(0, 10, bindAddress);
-        alive = true;
+        this(new ServerSocket(0, backlog, bindAddress));
 //        Requests will be served from a standalone thread
         new Thread(new Runnable() {
             public void run() {
@@ -59,10 +112,30 @@ public class TCPServer {
 //                    As long as the serve was not killed, loop and accept requests
                     while (alive) {
                         // Wait for a connection
-                        clientSocket = serverSocket.accept();
+                        final Socket clientSocket = serverSocket.accept();
+                        ACCEPTS.increment();
                         Log.d(LOG_TAG, "Request received from: " + clientSocket.getRemoteSocketAddress().toString());
+                        clientSocket.setSoTimeout(CLIENT_TIMEOUT_MS);
                         //Service the connection
-                        serve(clientSocket);
+                        requestExecutor.execute(new RequestExecutor.Job() {
+                            @Override
+                            public void run() {
+                                try {
+                                    serve(clientSocket);
+                                } catch (IOException e) {
+                                    Log.e(LOG_TAG, "Error serving request: " + e.getMessage());
+                                }
+                            }
+
+                            @Override
+                            public void reject(String reason) {
+                                Log.w(LOG_TAG, "Request dropped, " + reason);
+                                try {
+                                    clientSocket.close();
+                                } catch (IOException ignored) {
+                                }
+                            }
+                        });
                     }
 //                    When killed, release resources.
                     serverSocket.close();
@@ -74,7 +147,22 @@ public class TCPServer {
     }
 
     /**
-     * Reads a string (UTF) request and responds to it.
+     * Constructor for subclasses that run their own accept loop on an already bound socket.
+     * @param boundSocket Listening socket, the address and port it is bound to are the ones advertised.
+     */
+    protected TCPServer(ServerSocket boundSocket) {
+        serverSocket = boundSocket;
+        alive = true;
+        reserved.put(METRICS_REQUEST, new ReservedHandler() {
+            @Override
+            public String handle(String request) {
+                return Metrics.shared().snapshot();
+            }
+        });
+    }
+
+    /**
+     * Reads a string (UTF) request or a binary frame and responds to it.
      * @param client socket the request is originated
      * @throws IOException
      */
@@ -85,15 +173,26 @@ public class TCPServer {
         String response;
         try {
             // Acquire the streams for IO
-            inbound = new DataInputStream(client.getInputStream());
+            inbound = new DataInputStream(new BufferedInputStream(client.getInputStream()));
             outbound = new DataOutputStream(client.getOutputStream());
 
+//            Both formats are told apart by their first two bytes
+            inbound.mark(2);
+            if (Frames.isFrame(inbound.readUnsignedShort())) {
+                request = "frame";
+                serveFrame(inbound, outbound);
+                return;
+            }
+            inbound.reset();
+
             request = inbound.readUTF();
+            BYTES_IN.add(utfLength(request));
             Log.d(LOG_TAG, "Incoming request " + request);
             client.shutdownInput();
 
-            response = buildResponse(request);
+            response = answer(request);
             outbound.writeUTF(response);
+            BYTES_OUT.add(outbound.size());
             client.shutdownOutput();
         } finally {
             client.close();
@@ -101,6 +200,43 @@ public class TCPServer {
         }
     }
 
+    private void serveFrame(DataInputStream inbound, DataOutputStream outbound) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Frames.HEADER_LENGTH);
+        header.putShort((short) Frames.MAGIC);
+        inbound.readFully(header.array(), 2, Frames.HEADER_LENGTH - 2);
+        byte[] payload = new byte[Frames.payloadLength(header, 0)];
+        inbound.readFully(payload);
+        BYTES_IN.add(Frames.HEADER_LENGTH + payload.length);
+
+        ByteBuffer request = ByteBuffer.wrap(payload);
+        boolean tagged = (Frames.flags(header, 0) & Frames.FLAG_TAGGED) != 0;
+        if (tagged && payload.length < Frames.TAG_LENGTH)
+            throw new IOException("Tagged frame without a request id");
+        int id = tagged ? request.getInt() : 0;
+        ByteBuffer response = answer(request);
+        try {
+//            Frames are answered one per connection here, a tagged one just gets its id back
+            header = ByteBuffer.allocate(Frames.HEADER_LENGTH + Frames.TAG_LENGTH);
+            if (tagged) {
+                Frames.putTaggedHeader(header, 0, id, response.remaining());
+            } else {
+                Frames.putHeader(header, 0, response.remaining());
+            }
+            outbound.write(header.array(), 0, header.position());
+            if (response.hasArray()) {
+                outbound.write(response.array(), response.arrayOffset() + response.position(), response.remaining());
+            } else {
+                byte[] copy = new byte[response.remaining()];
+                response.get(copy);
+                outbound.write(copy);
+            }
+            outbound.flush();
+            BYTES_OUT.add(outbound.size());
+        } finally {
+            BufferPool.shared().release(response);
+        }
+    }
+
     /**
      * This method should be overwritten by more complicated server implementations.
      *
@@ -112,10 +248,128 @@ public class TCPServer {
         return request + " " + RESPONSE;
     }
 
+    /**
+     * Response to a binary frame. By default the payload is taken as UTF-8 text and
+     * answered by buildResponse(String), servers exchanging raw bytes override this one.
+     *
+     * @param request Payload, only valid until this method returns.
+     * @return Payload of the response frame, between its position and limit. The
+     * server owns it from now on and may recycle it through {@link BufferPool#shared()}.
+     */
+    protected ByteBuffer buildResponse(ByteBuffer request) {
+        return Frames.encodeUtf8(buildResponse(Frames.decodeUtf8(request)), BufferPool.shared());
+    }
+
+    /**
+     * Answers the reserved requests named so, RESERVED_PREFIX + name + " " + arguments.
+     * Reserved requests without a handler are left to buildResponse().
+     * @param handler null to stop answering them.
+     */
+    public void setReservedHandler(String name, ReservedHandler handler) {
+        if (handler == null)
+            reserved.remove(name);
+        else
+            reserved.put(name, handler);
+    }
+
+    /**
+     * @return The handler of a reserved request, null for any other request.
+     */
+    private ReservedHandler reservedHandler(String request) {
+        if (!request.startsWith(RESERVED_PREFIX) || reserved.isEmpty())
+            return null;
+        int end = request.indexOf(' ');
+        return reserved.get(request.substring(RESERVED_PREFIX.length(), end < 0 ? request.length() : end));
+    }
+
+    /**
+     * Builds the response to a request, timing it. Every server answers through here.
+     */
+    final String answer(String request) {
+        ReservedHandler handler = reservedHandler(request);
+        if (handler != null)
+            return handler.handle(request);
+        IN_FLIGHT.increment();
+        long started = System.nanoTime();
+        try {
+            return buildResponse(request);
+        } finally {
+            served(System.nanoTime() - started);
+        }
+    }
+
+    final ByteBuffer answer(ByteBuffer request) {
+//        Only requests starting with a NUL byte are decoded to check, binary payloads are left alone
+        if (request.hasRemaining() && request.get(request.position()) == 0 && !reserved.isEmpty()) {
+            String text = Frames.decodeUtf8(request.duplicate());
+            ReservedHandler handler = reservedHandler(text);
+            if (handler != null)
+                return Frames.encodeUtf8(handler.handle(text), BufferPool.shared());
+        }
+        IN_FLIGHT.increment();
+        long started = System.nanoTime();
+        try {
+            return buildResponse(request);
+        } finally {
+            served(System.nanoTime() - started);
+        }
+    }
+
+    private void served(long nanos) {
+        IN_FLIGHT.decrement();
+        serviceTimes.record(nanos);
+        LATENCY.record(nanos);
+    }
+
+    /**
+     * @return Bytes writeUTF() takes for the string, its length prefix included.
+     */
+    static int utfLength(String text) {
+        int length = 2;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            length += c >= 0x0001 && c <= 0x007f ? 1 : (c > 0x07ff ? 3 : 2);
+        }
+        return length;
+    }
+
+    /**
+     * @return Requests in flight and queued right now, and the p99 time spent building
+     * responses since the previous call, or before it if no request came meanwhile.
+     */
+    public ServerLoad sampleLoad() {
+        LatencyHistogram recent = serviceTimes;
+        serviceTimes = new LatencyHistogram();
+        if (recent.count() > 0)
+            lastP99Micros = TimeUnit.NANOSECONDS.toMicros(recent.percentileNanos(99));
+        RequestExecutor executor = requestExecutor;
+        return new ServerLoad(executor.inFlight(), executor.queued(), lastP99Micros);
+    }
+
     /**
      * Gracefully signals the server to halt the loop.
      */
     public void kill() {
         alive = false;
     }
+
+    /**
+     * Chooses the threads requests are handled on, by default they are handled
+     * by the thread that reads them.
+     * @param executor Execution model, admission limit and queue deadline of requests.
+     */
+    public void setRequestExecutor(RequestExecutor executor) {
+        requestExecutor = executor;
+    }
+
+    protected RequestExecutor requestExecutor() {
+        return requestExecutor;
+    }
+
+    /**
+     * @return false once the server was signaled to halt.
+     */
+    protected boolean isAlive() {
+        return alive;
+    }
 }
@@ -0,0 +1,402 @@
+package org.pdsd.pingpong.network;
+
+import org.pdsd.pingpong.platform.Log;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * Downloads files from a {@link TransferServer}.
+ *
+ * The file is fetched in chunks of chunkSize bytes, over one or more connections
+ * (streams) that each take the next chunk not fetched yet. The bytes go from the socket
+ * to the file through FileChannel.transferFrom(), never through the Java heap.
+ *
+ * The download is written to destination.part, and every chunk written is recorded in
+ * destination.progress. If the download fails, fetching the same file to the same
+ * destination again only fetches the chunks still missing. Once complete, the part file
+ * is renamed to the destination and the progress file removed.
+ */
+public class TransferClient {
+    private static final String LOG_TAG = "Transfer Client";
+
+    public static final int DEFAULT_CHUNK_SIZE = 4 << 20;
+    public static final int CONNECT_TIMEOUT_MS = 5000;
+    /**
+     * A stream that receives nothing for this long is closed, failing the download.
+     */
+    public static final long STALL_TIMEOUT_MS = 15000;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int PROGRESS_MAGIC = 0x50505431;
+    /**
+     * Magic, file size and chunk size, followed by one byte per chunk.
+     */
+    private static final int PROGRESS_HEADER = 4 + 8 + 4;
+
+    private static TransferClient shared;
+
+    private final int chunkSize;
+    private final Timer watchdog = new Timer("TransferClient-watchdog", true);
+
+    public TransferClient(int chunkSize) {
+        if (chunkSize <= 0 || chunkSize > TransferServer.MAX_READ)
+            throw new IllegalArgumentException("Chunk size out of range: " + chunkSize);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return Client shared by this process, with DEFAULT_CHUNK_SIZE.
+     */
+    public static synchronized TransferClient shared() {
+        if (shared == null)
+            shared = new TransferClient(DEFAULT_CHUNK_SIZE);
+        return shared;
+    }
+
+    /**
+     * Downloads a file, without blocking.
+     * @param name File name on the server.
+     * @param streams How many connections share the work, each fetching whole chunks.
+     * @return Completed with the destination once the whole file is there, failed
+     * otherwise. Calling it again after a failure resumes the download.
+     */
+    public ResponseFuture<File> fetch(final InetAddress address, final int port, final String name,
+                                      final File destination, final int streams) {
+        final ResponseFuture<File> result = new ResponseFuture<File>();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.complete(download(new InetSocketAddress(address, port), name, destination,
+                            Math.max(1, streams)));
+                } catch (IOException e) {
+                    result.fail(e);
+                } catch (InterruptedException e) {
+                    result.fail(e);
+                }
+            }
+        }, "TransferClient-" + name).start();
+        return result;
+    }
+
+    private File download(InetSocketAddress server, String name, File destination, int streams)
+            throws IOException, InterruptedException {
+        long started = System.nanoTime();
+        Stream first = new Stream(server, name);
+        long size;
+        try {
+            size = first.size();
+        } catch (IOException e) {
+            first.close();
+            throw e;
+        }
+
+        Download download = new Download(name, destination, size);
+        try {
+            int missing = download.missing();
+            Log.i(LOG_TAG, "Fetching " + name + ": " + size + " bytes, " + missing + " of " + download.chunks
+                    + " chunks missing, " + Math.min(streams, Math.max(1, missing)) + " streams");
+            Worker[] workers = new Worker[Math.min(streams, Math.max(1, missing))];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new Worker(download, i == 0 ? first : null, server, name);
+                workers[i].start();
+            }
+            for (Worker worker : workers) {
+                worker.join();
+            }
+            for (Worker worker : workers) {
+                if (worker.failure != null)
+                    throw worker.failure;
+            }
+            download.finish();
+        } finally {
+            download.close();
+        }
+
+        double seconds = (System.nanoTime() - started) / 1e9;
+        Log.i(LOG_TAG, String.format("Fetched %s in %.2fs, %.1f MB/s", name, seconds,
+                download.fetched.get() / seconds / (1 << 20)));
+        return destination;
+    }
+
+    /**
+     * State of one download, shared by its streams.
+     */
+    private class Download {
+        final String name;
+        final File destination;
+        final File part;
+        final File progressFile;
+        final long size;
+        final int chunks;
+        final RandomAccessFile data;
+        final RandomAccessFile progress;
+        /**
+         * Chunks already written, from the progress file, only read after the start.
+         */
+        final boolean[] done;
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicLong fetched = new AtomicLong();
+        volatile boolean failed;
+
+        Download(String name, File destination, long size) throws IOException {
+            this.name = name;
+            this.destination = destination;
+            this.size = size;
+            this.chunks = (int) ((size + chunkSize - 1) / chunkSize);
+            part = new File(destination.getPath() + ".part");
+            progressFile = new File(destination.getPath() + ".progress");
+            done = new boolean[chunks];
+
+            boolean resuming = part.isFile() && progressFile.isFile() && readProgress();
+            if (!resuming) {
+                part.delete();
+                progressFile.delete();
+            }
+            data = new RandomAccessFile(part, "rw");
+            data.setLength(size);
+            progress = new RandomAccessFile(progressFile, "rw");
+            if (!resuming) {
+                ByteBuffer header = ByteBuffer.allocate(PROGRESS_HEADER);
+                header.putInt(PROGRESS_MAGIC).putLong(size).putInt(chunkSize).flip();
+                progress.getChannel().write(header, 0);
+                progress.setLength(PROGRESS_HEADER + chunks);
+            }
+        }
+
+        /**
+         * @return True if the progress file belongs to a download of the same size and chunks.
+         */
+        private boolean readProgress() throws IOException {
+            RandomAccessFile file = new RandomAccessFile(progressFile, "r");
+            try {
+                if (file.length() != PROGRESS_HEADER + chunks || file.readInt() != PROGRESS_MAGIC
+                        || file.readLong() != size || file.readInt() != chunkSize)
+                    return false;
+                byte[] marks = new byte[chunks];
+                file.readFully(marks);
+                for (int i = 0; i < chunks; i++) {
+                    done[i] = marks[i] != 0;
+                }
+                return true;
+            } finally {
+                file.close();
+            }
+        }
+
+        int missing() {
+            int missing = 0;
+            for (boolean chunk : done) {
+                if (!chunk)
+                    missing++;
+            }
+            return missing;
+        }
+
+        /**
+         * @return Index of a chunk no stream took yet, -1 once there is none left.
+         */
+        int take() {
+            while (!failed) {
+                int chunk = next.getAndIncrement();
+                if (chunk >= chunks)
+                    return -1;
+                if (!done[chunk])
+                    return chunk;
+            }
+            return -1;
+        }
+
+        void written(int chunk) throws IOException {
+            progress.getChannel().write(ByteBuffer.wrap(new byte[] { 1 }), PROGRESS_HEADER + chunk);
+        }
+
+        void finish() throws IOException {
+            data.getChannel().force(false);
+            data.close();
+            progress.close();
+            destination.delete();
+            if (!part.renameTo(destination))
+                throw new IOException("Cannot move " + part + " to " + destination);
+            progressFile.delete();
+        }
+
+        void close() {
+            try {
+                data.close();
+                progress.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Fetches chunks over one connection until none are left.
+     */
+    private class Worker extends Thread {
+        final Download download;
+        final InetSocketAddress server;
+        final String name;
+        Stream stream;
+        IOException failure;
+
+        Worker(Download download, Stream stream, InetSocketAddress server, String name) {
+            super("TransferClient-stream");
+            this.download = download;
+            this.stream = stream;
+            this.server = server;
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            try {
+                int chunk;
+                while ((chunk = download.take()) >= 0) {
+                    if (stream == null)
+                        stream = new Stream(server, name);
+                    long offset = (long) chunk * chunkSize;
+                    int length = (int) Math.min(chunkSize, download.size - offset);
+                    stream.read(offset, length, download.data.getChannel());
+                    download.written(chunk);
+                    download.fetched.addAndGet(length);
+                }
+            } catch (IOException e) {
+                download.failed = true;
+                failure = e;
+            } finally {
+                if (stream != null)
+                    stream.close();
+            }
+        }
+    }
+
+    /**
+     * One connection to the server, requests are sent one after the other.
+     */
+    private class Stream {
+        final SocketChannel channel;
+        final byte[] name;
+        final ByteBuffer header = ByteBuffer.allocate(Frames.HEADER_LENGTH);
+        /**
+         * Bumped whenever bytes come in, the watchdog closes the connection if it stops moving.
+         */
+        final AtomicLong progress = new AtomicLong();
+        final TimerTask stallCheck;
+
+        Stream(InetSocketAddress server, String name) throws IOException {
+            this.name = name.getBytes(UTF8);
+            channel = SocketChannel.open();
+            try {
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().connect(server, CONNECT_TIMEOUT_MS);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            stallCheck = new TimerTask() {
+                long seen = -1;
+
+                @Override
+                public void run() {
+                    long now = progress.get();
+                    if (now == seen) {
+                        Log.w(LOG_TAG, "Stream stalled, closing it");
+                        close();
+                    }
+                    seen = now;
+                }
+            };
+            watchdog.schedule(stallCheck, STALL_TIMEOUT_MS, STALL_TIMEOUT_MS);
+        }
+
+        long size() throws IOException {
+            request(TransferServer.OP_SIZE, 0, 0);
+            int length = response();
+            if (length != 8)
+                throw new IOException("Bad size response of " + length + " bytes");
+            ByteBuffer size = ByteBuffer.allocate(8);
+            readFully(size);
+            return size.getLong(0);
+        }
+
+        /**
+         * Writes the range to the file at the same offset, straight from the socket.
+         */
+        void read(long offset, int length, FileChannel file) throws IOException {
+            request(TransferServer.OP_READ, offset, length);
+            int announced = response();
+            if (announced != length)
+                throw new IOException("Asked for " + length + " bytes at " + offset + ", got " + announced);
+            long received = 0;
+            while (received < length) {
+                long read = file.transferFrom(channel, offset + received, length - received);
+//                The socket blocks until data comes, nothing at all means it was closed
+                if (read <= 0)
+                    throw new EOFException("Connection closed in the middle of a chunk");
+                received += read;
+                progress.addAndGet(read);
+            }
+        }
+
+        private void request(int op, long offset, int length) throws IOException {
+            ByteBuffer request = ByteBuffer.allocate(Frames.HEADER_LENGTH + TransferServer.REQUEST_HEADER
+                    + name.length);
+            Frames.putHeader(request, Frames.FLAG_KEEP_ALIVE, TransferServer.REQUEST_HEADER + name.length);
+            request.put((byte) op).putLong(offset).putInt(length).put(name).flip();
+            while (request.hasRemaining()) {
+                channel.write(request);
+            }
+        }
+
+        /**
+         * @return Payload length of the response, whose header was just read.
+         */
+        private int response() throws IOException {
+            header.clear();
+            readFully(header);
+            progress.incrementAndGet();
+            int length = Frames.payloadLength(header, 0);
+            if ((Frames.flags(header, 0) & Frames.FLAG_ERROR) != 0) {
+                ByteBuffer reason = ByteBuffer.allocate(length);
+                readFully(reason);
+                reason.flip();
+                throw new IOException("Transfer refused: " + Frames.decodeUtf8(reason));
+            }
+            return length;
+        }
+
+        private void readFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0)
+                    throw new EOFException("Connection closed by the server");
+            }
+        }
+
+        void close() {
+            stallCheck.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package org.pdsd.pingpong.network;
+
+import org.pdsd.pingpong.platform.Log;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * Serves the files of a directory to {@link TransferClient}s, on a port of its own.
+ *
+ * A connection carries any number of requests, one after the other. Each request is
+ * a frame holding an operation, an offset, a length and the file name:
+ * <pre>
+ *   0    1        9        13
+ *   | op | offset | length | name (UTF-8) ...
+ * </pre>
+ * OP_SIZE is answered with the file size (8 bytes), OP_READ with the bytes of the
+ * requested range, which the file system hands to the socket directly
+ * (FileChannel.transferTo()), without going through the Java heap. Failures are
+ * answered with FLAG_ERROR and the reason.
+ */
+public class TransferServer {
+    private static final String LOG_TAG = "Transfer Server";
+
+    public static final int OP_SIZE = 1;
+    public static final int OP_READ = 2;
+    /**
+     * Bytes of a request before the file name.
+     */
+    static final int REQUEST_HEADER = 1 + 8 + 4;
+    /**
+     * Largest range a single read may ask for, it has to fit a frame.
+     */
+    public static final int MAX_READ = Frames.MAX_PAYLOAD;
+    /**
+     * Connections served at once, each one is a stream of a transfer.
+     */
+    public static final int MAX_CONNECTIONS = 16;
+    /**
+     * Clients that stay silent for this long are dropped.
+     */
+    public static final int CLIENT_TIMEOUT_MS = 30000;
+
+    private static final int MAX_REQUEST = 4096;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final ServerSocketChannel acceptChannel;
+    private final Semaphore connections = new Semaphore(MAX_CONNECTIONS);
+    private volatile boolean alive = true;
+
+    /**
+     * Starts serving the files directly inside the directory.
+     * @param bindAddress Server IP address, the port is chosen by the system.
+     */
+    public TransferServer(InetAddress bindAddress, File directory) throws IOException {
+        this.directory = directory;
+        acceptChannel = ServerSocketChannel.open();
+        acceptChannel.socket().bind(new InetSocketAddress(bindAddress, 0));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "TransferServer-accept").start();
+    }
+
+    public int listenPort() {
+        return acceptChannel.socket().getLocalPort();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public void kill() {
+        alive = false;
+        try {
+            acceptChannel.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.getMessage());
+        }
+    }
+
+    private void acceptLoop() {
+        while (alive) {
+            final SocketChannel client;
+            try {
+                client = acceptChannel.accept();
+            } catch (IOException e) {
+                if (alive)
+                    Log.e(LOG_TAG, "Error accepting: " + e.getMessage());
+                return;
+            }
+            if (!connections.tryAcquire()) {
+                Log.w(LOG_TAG, "Connection dropped, " + MAX_CONNECTIONS + " already served");
+                close(client);
+                continue;
+            }
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(client);
+                    } catch (EOFException e) {
+                        Log.d(LOG_TAG, "Client left");
+                    } catch (IOException e) {
+                        Log.e(LOG_TAG, "Error serving transfer: " + e.getMessage());
+                    } finally {
+                        close(client);
+                        connections.release();
+                    }
+                }
+            }, "TransferServer-stream").start();
+        }
+    }
+
+    /**
+     * Answers the requests of one client until it closes the connection.
+     */
+    private void serve(SocketChannel client) throws IOException {
+        client.socket().setTcpNoDelay(true);
+        client.socket().setSoTimeout(CLIENT_TIMEOUT_MS);
+//        Reads on the channel itself would ignore the timeout, requests are small enough to go through the stream
+        ReadableByteChannel requests = Channels.newChannel(client.socket().getInputStream());
+        ByteBuffer header = ByteBuffer.allocate(Frames.HEADER_LENGTH);
+        ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST);
+        ByteBuffer response = ByteBuffer.allocate(Frames.HEADER_LENGTH + 8);
+        while (alive) {
+            int length = Frames.readHeader(requests, header);
+            if (length < REQUEST_HEADER || length > MAX_REQUEST)
+                throw new IOException("Bad transfer request length " + length);
+            request.clear();
+            request.limit(length);
+            while (request.hasRemaining()) {
+                if (requests.read(request) < 0)
+                    throw new EOFException("Connection closed in the middle of a request");
+            }
+            request.flip();
+            int op = request.get();
+            long offset = request.getLong();
+            int count = request.getInt();
+            String name = Frames.decodeUtf8(request);
+
+            File file = resolve(name);
+            if (file == null) {
+                fail(client, "No such file: " + name);
+                continue;
+            }
+            if (op == OP_SIZE) {
+                response.clear();
+                Frames.putHeader(response, Frames.FLAG_KEEP_ALIVE, 8);
+                response.putLong(file.length()).flip();
+                writeFully(client, response);
+            } else if (op == OP_READ) {
+                send(client, file, offset, count);
+            } else {
+                fail(client, "Unknown operation " + op);
+            }
+        }
+    }
+
+    /**
+     * @return The file, null if the name is not that of a readable file of the directory.
+     */
+    private File resolve(String name) {
+        if (name.length() == 0 || name.indexOf('/') >= 0 || name.indexOf(File.separatorChar) >= 0
+                || name.equals(".") || name.equals(".."))
+            return null;
+        File file = new File(directory, name);
+        return file.isFile() && file.canRead() ? file : null;
+    }
+
+    /**
+     * Sends the range, cut to the end of the file, straight from the file to the socket.
+     */
+    private void send(SocketChannel client, File file, long offset, int count) throws IOException {
+        RandomAccessFile source = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = source.getChannel();
+            long size = channel.size();
+            if (offset < 0 || offset > size || count < 0 || count > MAX_READ) {
+                fail(client, "Range out of bounds: " + offset + "+" + count + " of " + size);
+                return;
+            }
+            long length = Math.min(count, size - offset);
+            ByteBuffer header = ByteBuffer.allocate(Frames.HEADER_LENGTH);
+            Frames.putHeader(header, Frames.FLAG_KEEP_ALIVE, (int) length);
+            header.flip();
+            writeFully(client, header);
+
+            long sent = 0;
+            while (sent < length) {
+                long written = channel.transferTo(offset + sent, length - sent, client);
+                if (written <= 0 && offset + sent >= channel.size())
+                    throw new IOException(file + " was truncated while being sent");
+                sent += written;
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    private static void fail(SocketChannel client, String reason) throws IOException {
+        Log.w(LOG_TAG, reason);
+        byte[] text = reason.getBytes(UTF8);
+        ByteBuffer response = ByteBuffer.allocate(Frames.HEADER_LENGTH + text.length);
+        Frames.putHeader(response, Frames.FLAG_KEEP_ALIVE | Frames.FLAG_ERROR, text.length);
+        response.put(text).flip();
+        writeFully(client, response);
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.getMessage());
+        }
+    }
+}
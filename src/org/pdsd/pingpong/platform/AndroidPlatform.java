@@ -0,0 +1,32 @@
+package org.pdsd.pingpong.platform;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * Logs to logcat and runs callbacks on the UI thread.
+ */
+public class AndroidPlatform extends Platform {
+    private final Handler mainThread = new Handler(Looper.getMainLooper());
+    private final Executor callbacks = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            mainThread.post(task);
+        }
+    };
+
+    @Override
+    public void log(int level, String tag, String message) {
+        android.util.Log.println(level, tag, String.valueOf(message));
+    }
+
+    @Override
+    public Executor callbacks() {
+        return callbacks;
+    }
+}
@@ -0,0 +1,64 @@
+package org.pdsd.pingpong.platform;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * Logs to the standard streams and runs callbacks one at a time on a daemon thread,
+ * which plays the part of the UI thread.
+ */
+public class JvmPlatform extends Platform {
+    private static final String LEVELS = "??VDIWE";
+
+    private final int minLevel;
+    private volatile ExecutorService callbacks;
+
+    public JvmPlatform() {
+        this(INFO);
+    }
+
+    /**
+     * @param minLevel Messages below this level are dropped.
+     */
+    public JvmPlatform(int minLevel) {
+        this.minLevel = minLevel;
+    }
+
+    @Override
+    public void log(int level, String tag, String message) {
+        if (level < minLevel)
+            return;
+        String line = new SimpleDateFormat("HH:mm:ss.SSS").format(new Date()) + " "
+                + LEVELS.charAt(Math.max(0, Math.min(level, ERROR))) + "/" + tag + ": " + message;
+        if (level >= WARN)
+            System.err.println(line);
+        else
+            System.out.println(line);
+    }
+
+    @Override
+    public Executor callbacks() {
+        if (callbacks == null) {
+            synchronized (this) {
+                if (callbacks == null) {
+                    callbacks = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable task) {
+                            Thread thread = new Thread(task, "Callbacks");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+            }
+        }
+        return callbacks;
+    }
+}
@@ -0,0 +1,28 @@
+package org.pdsd.pingpong.platform;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * Drop-in for android.util.Log that writes through the installed Platform.
+ */
+public final class Log {
+    private Log() {
+    }
+
+    public static void d(String tag, String message) {
+        Platform.current().log(Platform.DEBUG, tag, message);
+    }
+
+    public static void i(String tag, String message) {
+        Platform.current().log(Platform.INFO, tag, message);
+    }
+
+    public static void w(String tag, String message) {
+        Platform.current().log(Platform.WARN, tag, message);
+    }
+
+    public static void e(String tag, String message) {
+        Platform.current().log(Platform.ERROR, tag, message);
+    }
+}
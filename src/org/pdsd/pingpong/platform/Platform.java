@@ -0,0 +1,42 @@
+package org.pdsd.pingpong.platform;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger to pingpong.7.radustoe@spamgourmet.com
+ *
+ * What the discovery and ping core needs from the system it runs on. The core only
+ * talks to sockets and JmDNS, logging and the thread callbacks are delivered on are
+ * the only things that differ between a phone and a plain JVM.
+ *
+ * Install the platform before creating any NetworkService, the JVM one is used otherwise.
+ */
+public abstract class Platform {
+//    Same values as android.util.Log
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private static volatile Platform current = new JvmPlatform();
+
+    public static Platform current() {
+        return current;
+    }
+
+    public static void install(Platform platform) {
+        current = platform;
+    }
+
+    /**
+     * @param level One of VERBOSE to ERROR.
+     */
+    public abstract void log(int level, String tag, String message);
+
+    /**
+     * @return Where application callbacks run, such as the UI thread on Android.
+     */
+    public abstract Executor callbacks();
+}
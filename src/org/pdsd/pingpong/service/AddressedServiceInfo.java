@@ -0,0 +1,55 @@
+package org.pdsd.pingpong.service;
+
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.impl.ServiceInfoImpl;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger,  osmosis.7.radustoe@spamgourmet.com
+ *
+ * A resolved service whose addresses are known without asking JmDNS, e.g. read
+ * from the peer cache or handed out by a simulated network.
+ */
+public class AddressedServiceInfo extends ServiceInfoImpl {
+    private final InetAddress[] addresses;
+
+    public AddressedServiceInfo(String type, String name, int port, Map<String, ?> text, InetAddress[] addresses) {
+        super(type, name, "", port, 0, 0, false, text);
+        this.addresses = addresses.clone();
+    }
+
+    /**
+     * @return Copy of the service, advertised at the given addresses.
+     */
+    public static AddressedServiceInfo of(ServiceInfo info, InetAddress... addresses) {
+        Map<String, String> text = new HashMap<String, String>();
+        Enumeration<String> names = info.getPropertyNames();
+        while (names.hasMoreElements()) {
+            String name = names.nextElement();
+            text.put(name, info.getPropertyString(name));
+        }
+        return new AddressedServiceInfo(info.getType(), info.getName(), info.getPort(), text, addresses);
+    }
+
+    @Override
+    public InetAddress[] getInetAddresses() {
+        return addresses.clone();
+    }
+
+    @Override
+    public Inet4Address[] getInet4Addresses() {
+        List<Inet4Address> v4 = new ArrayList<Inet4Address>(addresses.length);
+        for (InetAddress address : addresses) {
+            if (address instanceof Inet4Address)
+                v4.add((Inet4Address) address);
+        }
+        return v4.toArray(new Inet4Address[v4.size()]);
+    }
+}
@@ -0,0 +1,42 @@
+package org.pdsd.pingpong.service;
+
+import android.content.Context;
+import org.pdsd.pingpong.network.AndroidWiFiTCPServer;
+import org.pdsd.pingpong.network.NioTCPServer;
+import org.pdsd.pingpong.network.RequestExecutor;
+import org.pdsd.pingpong.network.TCPServer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger,  osmosis.7.radustoe@spamgourmet.com
+ *
+ * Follows the device's WiFi address, the endpoints are the same as the ones
+ * FrontPage starts with: a non-blocking server and multicast DNS.
+ */
+public class AndroidWiFiEndpoints implements NetworkService.Endpoints {
+    private final Context ctx;
+
+    public AndroidWiFiEndpoints(Context androidContext) {
+        ctx = androidContext;
+    }
+
+    @Override
+    public InetAddress currentAddress() throws IOException {
+        return AndroidWiFiTCPServer.currentWifiAddress(ctx);
+    }
+
+    @Override
+    public TCPServer createServer(InetAddress address) throws IOException {
+        NioTCPServer server = new NioTCPServer(address);
+        server.setRequestExecutor(RequestExecutor.standard());
+        return server;
+    }
+
+    @Override
+    public Discovery createDiscovery(InetAddress address) throws IOException {
+        return new JmDNSDiscovery(address);
+    }
+}
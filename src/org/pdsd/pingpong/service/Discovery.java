@@ -0,0 +1,60 @@
+package org.pdsd.pingpong.service;
+
+import javax.jmdns.ServiceInfo;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger,  osmosis.7.radustoe@spamgourmet.com
+ *
+ * How a NetworkService advertises itself and learns about the others. JmDNSDiscovery
+ * talks multicast DNS, other implementations may stand in for it, e.g. to simulate
+ * a large network inside one process.
+ */
+public interface Discovery {
+
+    /**
+     * Called from the discovery's own threads.
+     */
+    interface Listener {
+        /**
+         * A service of the watched type was announced, it is not resolved yet.
+         */
+        void serviceAdded(String name);
+
+        /**
+         * The address, port and TXT record of a service are known.
+         */
+        void serviceResolved(ServiceInfo info);
+
+        void serviceRemoved(ServiceInfo info);
+    }
+
+    void register(ServiceInfo info) throws IOException;
+
+    void unregister(ServiceInfo info);
+
+    /**
+     * Replaces the TXT record of a registered service and announces it again, the
+     * service stays listed meanwhile.
+     */
+    void updateText(ServiceInfo info, Map<String, String> text) throws IOException;
+
+    /**
+     * The service was learned from another peer and answered, the discovery need not
+     * query for its address and TXT record. It is still reported when withdrawn.
+     */
+    void learned(String type, String name);
+
+    /**
+     * Starts reporting the services of the given type, including those already known
+     * and the ones this node registers itself.
+     */
+    void watch(String type, Listener listener) throws IOException;
+
+    /**
+     * Withdraws every registered service and stops discovering.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,399 @@
+package org.pdsd.pingpong.service;
+
+import org.pdsd.pingpong.platform.Log;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceEvent;
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.ServiceListener;
+import javax.jmdns.ServiceTypeListener;
+import javax.jmdns.impl.DNSOutgoing;
+import javax.jmdns.impl.DNSQuestion;
+import javax.jmdns.impl.JmDNSImpl;
+import javax.jmdns.impl.constants.DNSConstants;
+import javax.jmdns.impl.constants.DNSRecordClass;
+import javax.jmdns.impl.constants.DNSRecordType;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger,  osmosis.7.radustoe@spamgourmet.com
+ *
+ * Discovery over multicast DNS, on the interface of the given address.
+ *
+ * Each watched type gets a single JmDNS listener, whatever the number of watchers,
+ * and a service is only reported resolved again when its address, port or TXT record
+ * changed. Services announced within RESOLVE_BATCH_MS of each other are resolved with
+ * one multicast query asking for all of them, instead of a query (and its repeats)
+ * per service.
+ */
+public class JmDNSDiscovery implements Discovery {
+    private static final String LOG_TAG = "JmDNS Discovery";
+
+    /**
+     * How long announcements are collected before resolving them together.
+     */
+    private static final long RESOLVE_BATCH_MS = 20;
+    /**
+     * Resolve right away once this many services are waiting.
+     */
+    private static final int MAX_RESOLVE_BATCH = 64;
+    /**
+     * How long handing a service to JmDNS may wait for its answer, the least JmDNS
+     * waits anyway. The listener reports the resolution whenever it comes.
+     */
+    private static final long REQUEST_WAIT_MS = 200;
+
+    /**
+     * How the watched types are subscribed to.
+     */
+    public enum Mode {
+        /**
+         * Listen to the watched types directly.
+         */
+        TARGETED,
+        /**
+         * Browse every service type announced on the network and subscribe to a watched
+         * one once it shows up, as the first versions did. Every type on the network is
+         * queried for and reported, only worth it to see what else is around.
+         */
+        BROWSE_TYPES
+    }
+
+    private final JmDNS jmdns;
+    private final Mode mode;
+    private final ConcurrentMap<String, Subscription> subscriptions = new ConcurrentHashMap<String, Subscription>();
+    private final AtomicBoolean browsing = new AtomicBoolean();
+
+    /**
+     * Services waiting to be resolved, by qualified name, guarded by itself.
+     */
+    private final Map<String, Subscription> unresolved = new LinkedHashMap<String, Subscription>();
+    private boolean flushScheduled;
+    private final Timer resolver = new Timer("JmDNSDiscovery-resolver", true);
+    /**
+     * Hands the services to JmDNS one by one, each call blocks until its answer is in.
+     */
+    private final ExecutorService requests = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "JmDNSDiscovery-requests");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final AtomicLong skippedResolves = new AtomicLong();
+
+    public JmDNSDiscovery(InetAddress address) throws IOException {
+        this(address, Mode.TARGETED);
+    }
+
+    public JmDNSDiscovery(InetAddress address, Mode mode) throws IOException {
+        this.mode = mode;
+        jmdns = JmDNS.create(address, address.getHostName());
+    }
+
+    @Override
+    public void register(ServiceInfo info) throws IOException {
+        jmdns.registerService(info);
+    }
+
+    @Override
+    public void unregister(ServiceInfo info) {
+        jmdns.unregisterService(info);
+    }
+
+    /**
+     * JmDNS announces a registered service again as soon as its text changes.
+     */
+    @Override
+    public void updateText(ServiceInfo info, Map<String, String> text) {
+        info.setText(text);
+    }
+
+    /**
+     * Services announced later on are not resolved, nor are those waiting for the next batch.
+     */
+    @Override
+    public void learned(String type, String name) {
+        Subscription subscription = subscriptions.get(type);
+        if (subscription == null)
+            return;
+        subscription.learned.add(name);
+        forget(subscription, name);
+    }
+
+    /**
+     * @return Resolutions skipped because the services were learned from other peers.
+     */
+    public long skippedResolves() {
+        return skippedResolves.get();
+    }
+
+    /**
+     * Watching the same type again adds the listener to the existing subscription,
+     * the same listener twice is only called once.
+     */
+    @Override
+    public void watch(final String type, final Listener listener) throws IOException {
+        Subscription subscription = subscriptions.get(type);
+        if (subscription == null) {
+            Subscription created = new Subscription(type);
+            subscription = subscriptions.putIfAbsent(type, created);
+            if (subscription == null)
+                subscription = created;
+        }
+        if (!subscription.listeners.add(listener))
+            return;
+
+        if (mode == Mode.TARGETED)
+            subscription.attach();
+        else if (browsing.compareAndSet(false, true))
+            browseTypes();
+//        Services found before this listener came along
+        subscription.replay(listener);
+    }
+
+    private void browseTypes() throws IOException {
+        jmdns.addServiceTypeListener(new ServiceTypeListener() {
+            @Override
+            public void serviceTypeAdded(ServiceEvent event) {
+                Log.i(LOG_TAG, "Service type discovered: " + event.getType());
+                // Is anyone interested in this type ?
+                Subscription subscription = subscriptions.get(event.getType());
+                if (subscription != null)
+                    subscription.attach();
+            }
+
+            @Override
+            public void subTypeForServiceTypeAdded(ServiceEvent ev) {}
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        resolver.cancel();
+        requests.shutdownNow();
+        jmdns.unregisterAllServices();
+        jmdns.close();
+    }
+
+    /**
+     * Queues a service for the next resolve batch, unless it is queued already.
+     */
+    private void resolve(Subscription subscription, String name) {
+        String qualified = name + "." + subscription.type;
+        boolean flushNow;
+        synchronized (unresolved) {
+            if (unresolved.containsKey(qualified))
+                return;
+            unresolved.put(qualified, subscription);
+            flushNow = unresolved.size() >= MAX_RESOLVE_BATCH;
+            if (!flushNow && !flushScheduled) {
+                flushScheduled = true;
+                resolver.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, RESOLVE_BATCH_MS);
+            }
+        }
+        if (flushNow)
+            flush();
+    }
+
+    private void forget(Subscription subscription, String name) {
+        synchronized (unresolved) {
+            unresolved.remove(name + "." + subscription.type);
+        }
+    }
+
+    /**
+     * Resolves the queued services. A single query asks for all of them at once, then
+     * each one is handed to JmDNS so that it reports the resolution. Its own queries
+     * only start after a while and are skipped once the answers are in.
+     */
+    private void flush() {
+        final Map<String, Subscription> batch;
+        synchronized (unresolved) {
+            flushScheduled = false;
+            if (unresolved.isEmpty())
+                return;
+            batch = new LinkedHashMap<String, Subscription>(unresolved);
+            unresolved.clear();
+        }
+
+        query(batch.keySet());
+        try {
+            requests.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (Map.Entry<String, Subscription> service : batch.entrySet()) {
+                        String type = service.getValue().type;
+                        String qualified = service.getKey();
+                        String name = qualified.substring(0, qualified.length() - type.length() - 1);
+                        jmdns.requestServiceInfo(type, name, REQUEST_WAIT_MS);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.d(LOG_TAG, "Closed, " + batch.size() + " services left unresolved");
+        }
+    }
+
+    /**
+     * Asks for the SRV and TXT records of the services, in as few packets as they fit in.
+     */
+    private void query(Set<String> services) {
+        if (!(jmdns instanceof JmDNSImpl))
+            return;
+
+        JmDNSImpl dns = (JmDNSImpl) jmdns;
+        int packets = 0;
+        try {
+            DNSOutgoing query = new DNSOutgoing(DNSConstants.FLAGS_QR_QUERY);
+            for (String qualified : services) {
+                List<DNSQuestion> questions = Arrays.asList(
+                        DNSQuestion.newQuestion(qualified, DNSRecordType.TYPE_SRV, DNSRecordClass.CLASS_IN,
+                                DNSRecordClass.NOT_UNIQUE),
+                        DNSQuestion.newQuestion(qualified, DNSRecordType.TYPE_TXT, DNSRecordClass.CLASS_IN,
+                                DNSRecordClass.NOT_UNIQUE));
+                for (DNSQuestion question : questions) {
+                    try {
+                        query.addQuestion(question);
+                    } catch (IOException full) {
+//                        The packet is full, send it and carry on in a new one
+                        dns.send(query);
+                        packets++;
+                        query = new DNSOutgoing(DNSConstants.FLAGS_QR_QUERY);
+                        query.addQuestion(question);
+                    }
+                }
+            }
+            dns.send(query);
+            packets++;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Cannot send resolve query: " + e.getMessage());
+        }
+        Log.d(LOG_TAG, "Resolving " + services.size() + " services in " + packets + " queries");
+    }
+
+    /**
+     * The single JmDNS listener of one type, forwarding to every watcher.
+     */
+    private class Subscription implements ServiceListener {
+        final String type;
+        final Set<Listener> listeners = new CopyOnWriteArraySet<Listener>();
+        private final AtomicBoolean attached = new AtomicBoolean();
+        /**
+         * Last reported resolution of each service, to drop the repeated ones.
+         */
+        private final ConcurrentMap<String, Resolution> resolved = new ConcurrentHashMap<String, Resolution>();
+        /**
+         * Services other peers told about, left unresolved.
+         */
+        final Set<String> learned = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        Subscription(String type) {
+            this.type = type;
+        }
+
+        void attach() {
+            if (attached.compareAndSet(false, true))
+                jmdns.addServiceListener(type, this);
+        }
+
+        void replay(Listener listener) {
+            for (Resolution resolution : resolved.values()) {
+                listener.serviceResolved(resolution.info);
+            }
+        }
+
+        @Override
+        public void serviceAdded(ServiceEvent event) {
+            for (Listener listener : listeners) {
+                listener.serviceAdded(event.getName());
+            }
+            if (learned.contains(event.getName()))
+                skippedResolves.incrementAndGet();
+            else if (!resolved.containsKey(event.getName()))
+                resolve(this, event.getName());
+        }
+
+        @Override
+        public void serviceRemoved(ServiceEvent event) {
+            resolved.remove(event.getName());
+            learned.remove(event.getName());
+            forget(this, event.getName());
+            for (Listener listener : listeners) {
+                listener.serviceRemoved(event.getInfo());
+            }
+        }
+
+        @Override
+        public void serviceResolved(ServiceEvent event) {
+            ServiceInfo info = event.getInfo();
+            Resolution resolution = new Resolution(info);
+            Resolution previous = resolved.put(event.getName(), resolution);
+            if (resolution.equals(previous))
+                return;
+            for (Listener listener : listeners) {
+                listener.serviceResolved(info);
+            }
+        }
+    }
+
+    /**
+     * What a resolution says about a service: addresses, port and TXT record.
+     */
+    private static class Resolution {
+        final ServiceInfo info;
+        final List<InetAddress> addresses;
+        final Map<String, String> text = new LinkedHashMap<String, String>();
+
+        Resolution(ServiceInfo info) {
+            this.info = info;
+            this.addresses = new ArrayList<InetAddress>(Arrays.asList(info.getInetAddresses()));
+            Enumeration<String> names = info.getPropertyNames();
+            while (names.hasMoreElements()) {
+                String name = names.nextElement();
+                text.put(name, info.getPropertyString(name));
+            }
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Resolution))
+                return false;
+            Resolution resolution = (Resolution) other;
+            return info.getPort() == resolution.info.getPort() && addresses.equals(resolution.addresses)
+                    && text.equals(resolution.text);
+        }
+
+        @Override
+        public int hashCode() {
+            return addresses.hashCode() * 31 + info.getPort();
+        }
+    }
+}
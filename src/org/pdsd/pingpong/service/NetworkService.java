@@ -1,24 +1,33 @@
 package org.pdsd.pingpong.service;
 
-import android.app.Service;
-import android.content.Context;
-import android.content.Intent;
-import android.net.wifi.WifiManager;
-import android.os.AsyncTask;
-import android.os.IBinder;
-import android.provider.Settings;
-import android.util.Log;
-import org.pdsd.pingpong.network.TCPClient;
+import org.pdsd.pingpong.network.AsyncTCPClient;
+import org.pdsd.pingpong.network.DatagramPingClient;
+import org.pdsd.pingpong.network.DatagramPingServer;
+import org.pdsd.pingpong.network.Frames;
+import org.pdsd.pingpong.network.LatencyHistogram;
+import org.pdsd.pingpong.network.Metrics;
+import org.pdsd.pingpong.network.ResponseFuture;
+import org.pdsd.pingpong.network.ServerLoad;
 import org.pdsd.pingpong.network.TCPServer;
+import org.pdsd.pingpong.network.TransferClient;
+import org.pdsd.pingpong.network.TransferServer;
+import org.pdsd.pingpong.platform.Log;
+import org.pdsd.pingpong.platform.Platform;
 
 import javax.jmdns.*;
 import javax.jmdns.impl.ServiceInfoImpl;
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 import java.net.UnknownServiceException;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Author: Radu Stoenescu
@@ -50,6 +59,25 @@ public class NetworkService {
         void handle(ServiceInfo si);
     }
 
+    public interface PeerChangeHandler {
+        void handle(PeerChanges changes);
+    }
+
+    /**
+     * Where the node is reachable, and how to bring up its endpoints on another address.
+     * Lets the service follow the device when its address changes, see watchAddress().
+     */
+    public interface Endpoints {
+        /**
+         * @return Address the node should be reachable at now, null while it has none.
+         */
+        InetAddress currentAddress() throws IOException;
+
+        TCPServer createServer(InetAddress address) throws IOException;
+
+        Discovery createDiscovery(InetAddress address) throws IOException;
+    }
+
     private static final String LOG_TAG = "JmDNS Service";
 
     /**
@@ -65,24 +93,204 @@ public class NetworkService {
      * What request should be sent to the serviceServer running on other peers ?
      */
     private static String REQUEST_MESSAGE = "Ping ";
+    /**
+     * TXT record key holding the binary frame version a peer understands,
+     * peers without it only speak the UTF string exchange.
+     */
+    private static final String TXT_WIRE_VERSION = "wire";
+    /**
+     * TXT record key holding the port of the peer's DatagramPingServer, if it runs one.
+     */
+    private static final String TXT_DATAGRAM_PORT = "udp";
+    /**
+     * TXT record key holding the port of the peer's TransferServer, if it shares files.
+     */
+    private static final String TXT_TRANSFER_PORT = "xfer";
+    /**
+     * TXT record key holding the peer's ServerLoad.
+     */
+    private static final String TXT_LOAD = "load";
+    /**
+     * TXT record key holding the name the peer went by before its last changeId().
+     */
+    private static final String TXT_PREVIOUS_ID = "was";
+    /**
+     * How long a peer has to answer a ping.
+     */
+    private static final long PING_TIMEOUT_MS = AsyncTCPClient.DEFAULT_TIMEOUT_MS;
+    /**
+     * How many peers pingAll() talks to at once by default.
+     */
+    public static final int DEFAULT_PING_PARALLELISM = 32;
+    /**
+     * How many newly resolved peers are greeted at once. Joining a large network resolves
+     * every peer within moments, pinging them all at once would run out of sockets.
+     */
+    private static final int MAX_DISCOVERY_PINGS = 8;
+    /**
+     * Cached peers not seen for longer than this are not worth trying anymore.
+     */
+    private static final long WARM_START_MAX_AGE_MS = 24 * 60 * 60 * 1000;
+    /**
+     * Liveness checks. A peer that dropped off without saying goodbye stays in the mDNS
+     * cache until its record expires, minutes later. Each peer is probed once it has been
+     * silent for its interval: doubled after every answer up to MAX_PROBE_INTERVAL_MS,
+     * back to MIN_PROBE_INTERVAL_MS after a miss. A peer that misses a probe is suspect
+     * and probed every tick, after DEAD_AFTER_MISSES in a row it is removed.
+     */
+    private static final long LIVENESS_TICK_MS = 1000;
+    private static final long MIN_PROBE_INTERVAL_MS = 2000;
+    private static final long MAX_PROBE_INTERVAL_MS = 30000;
+    private static final int DEAD_AFTER_MISSES = 3;
+    /**
+     * At most this many peers are probed per tick, in a single batch, suspects first.
+     * Peers the batch runs out of time for before probing them are not counted as missing.
+     */
+    private static final int MAX_PROBES_PER_TICK = 32;
+    private static final int PROBE_PARALLELISM = 8;
+    private static final long PROBE_TIMEOUT_MS = 2000;
+    /**
+     * Peer changes are batched over this long, or until this many peers changed.
+     */
+    public static final long DEFAULT_CHANGE_WINDOW_MS = 100;
+    public static final int DEFAULT_CHANGE_BATCH = 64;
+    /**
+     * The load is sampled this often and advertised again only if it changed, every
+     * announcement goes to the whole network.
+     */
+    private static final long LOAD_ADVERTISE_INTERVAL_MS = 5000;
+    /**
+     * How often watchAddress() checks the address, and how long the old endpoints keep
+     * running next to the new ones after a move.
+     */
+    private static final long ADDRESS_CHECK_MS = 2000;
+    private static final long RETIRE_AFTER_MS = 2000;
+    /**
+     * Reserved request answered with the peer table, see PeerDigest.
+     */
+    private static final String GOSSIP_REQUEST = "peers";
+    public static final int DEFAULT_GOSSIP_FANOUT = 3;
+    public static final long DEFAULT_GOSSIP_INTERVAL_MS = 5000;
+    /**
+     * Peers the other node has not heard from for longer are not worth a ping.
+     */
+    private static final long GOSSIP_MAX_AGE_MS = 30000;
 
-    private TCPServer serviceServer;
-    private String devId;
+    private static final String METRIC_PEERS = "peers";
+    private static final String METRIC_SUSPECTS = "peers.suspect";
+    private static final Metrics.Counter DISCOVERY_ADDED = Metrics.shared().counter("discovery.added");
+    private static final Metrics.Counter DISCOVERY_RESOLVED = Metrics.shared().counter("discovery.resolved");
+    private static final Metrics.Counter DISCOVERY_REMOVED = Metrics.shared().counter("discovery.removed");
+    private static final Metrics.Counter PINGS = Metrics.shared().counter("ping.sent");
+    private static final Metrics.Counter PING_FAILURES = Metrics.shared().counter("ping.failures");
+
+    /**
+     * Runs the liveness checks and flushes the change batches of every service in the
+     * process, its tasks never block.
+     */
+    private static Timer timer;
+
+    private volatile TCPServer serviceServer;
+    /**
+     * Answers pings sent as datagrams, null if it could not be started.
+     */
+    private volatile DatagramPingServer datagramServer;
+    private volatile boolean datagramPings = true;
+    /**
+     * Serves the shared directory, null until share() is called.
+     */
+    private volatile TransferServer transferServer;
+    private volatile String devId;
+    private volatile String previousId;
+    private volatile long lastRenameMillis = -1;
     private ServiceTeardownHook teardownHook;
 
     /**
      * Service discovery and advertisement.
      */
-    private JmDNS jmdns;
-    private ServiceInfo serviceInfo;
+    private volatile Discovery discovery;
+    private volatile ServiceInfo serviceInfo;
 
-    private Set<ServiceInfo> discoveredPeers = new TreeSet<ServiceInfo>(new Comparator<ServiceInfo>() {
+    private final PeerRegistry discoveredPeers = new PeerRegistry();
+    /**
+     * Address each peer was last reached at, by name. Requests go straight to it instead
+     * of racing all the peer's addresses again, until it stops working.
+     */
+    private final ConcurrentMap<String, InetAddress> preferredAddresses =
+            new ConcurrentHashMap<String, InetAddress>();
+    /**
+     * Round trip times of every successful exchange, whatever the peer.
+     */
+    private final LatencyHistogram latency = new LatencyHistogram();
+    /**
+     * Resolved peers waiting to be greeted, guarded by itself along with the two counters.
+     */
+    private final Queue<ServiceInfo> pendingPings = new ArrayDeque<ServiceInfo>();
+    private int discoveryPings;
+    private boolean pumpingPings;
+
+    private PeerCache peerCache;
+    /**
+     * What the cache held at start, kept so peers not met this time are not forgotten.
+     */
+    private List<PeerCache.Entry> cachedPeers = Collections.emptyList();
+    private final long startedNanos = System.nanoTime();
+    private volatile long firstPeerNanos = -1;
+    private final LivenessCheck liveness = new LivenessCheck();
+    private final LoadAdvertisement loadAdvertisement = new LoadAdvertisement();
+    /**
+     * Load in the current advertisement.
+     */
+    private volatile ServerLoad advertisedLoad = new ServerLoad(0, 0, 0);
+    /**
+     * Held while the advertisement is replaced.
+     */
+    private final Object advertising = new Object();
+    private final Random random = new Random();
+    private AddressWatch addressWatch;
+    private volatile long lastRecoveryMillis = -1;
+    private final PeerDigest peerTable = new PeerDigest(discoveredPeers);
+    private final TCPServer.ReservedHandler peerTableRequests = new TCPServer.ReservedHandler() {
+        @Override
+        public String handle(String request) {
+            int space = request.indexOf(' ');
+            Long known = space < 0 ? null : PeerDigest.parseDigest(request.substring(space + 1));
+            return peerTable.encode(known == null ? 0 : known);
+        }
+    };
+    /**
+     * Digest of the last table each peer sent, it only sends the whole table again once it changed.
+     */
+    private final ConcurrentMap<String, Long> gossipDigests = new ConcurrentHashMap<String, Long>();
+    /**
+     * Peers learned from the others' tables, waiting for their first ping.
+     */
+    private final Set<String> gossiped = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile GossipRound gossip;
+    private final Metrics.Gauge peerCount = new Metrics.Gauge() {
         @Override
-        public int compare(ServiceInfo si1, ServiceInfo si2) {
-            return si1.getName().compareTo(si2.getName());
+        public long value() {
+            return discoveredPeers.size();
         }
-    });
+    };
+    private final Metrics.Gauge suspectCount = new Metrics.Gauge() {
+        @Override
+        public long value() {
+            int suspects = 0;
+            for (Peer peer : discoveredPeers.snapshot().peers) {
+                if (peer.isSuspect())
+                    suspects++;
+            }
+            return suspects;
+        }
+    };
     private ServiceEventHandler onNew, onRemove;
+    private volatile PeerChangeBatcher changes;
+    /**
+     * Peers are added and removed on the platform's callback thread (the UI thread on
+     * Android), where the callbacks expect to run.
+     */
+    private final Executor mainThread = Platform.current().callbacks();
 
     public void setOnNewServiceCallback(ServiceEventHandler callback) {
         onNew = callback;
@@ -92,14 +300,80 @@ public class NetworkService {
         onRemove = callback;
     }
 
+    /**
+     * Same as setOnPeersChangedCallback(callback, DEFAULT_CHANGE_WINDOW_MS, DEFAULT_CHANGE_BATCH).
+     */
+    public void setOnPeersChangedCallback(PeerChangeHandler callback) {
+        setOnPeersChangedCallback(callback, DEFAULT_CHANGE_WINDOW_MS, DEFAULT_CHANGE_BATCH);
+    }
+
+    /**
+     * Reports the changes to the listed peers in batches, on the callback thread, instead
+     * of one call per event. Peers listed before the callback was set are not reported.
+     * @param windowMs How long changes are collected, from the first one of a batch.
+     * @param maxBatch The batch is delivered early once this many peers changed.
+     */
+    public void setOnPeersChangedCallback(PeerChangeHandler callback, long windowMs, int maxBatch) {
+        PeerChangeBatcher previous = changes;
+        changes = callback == null ? null : new PeerChangeBatcher(callback, windowMs, maxBatch, timer(), mainThread);
+        if (previous != null)
+            previous.cancel();
+    }
+
+    /**
+     * @return Name this node is advertised under.
+     */
+    public String getId() {
+        return devId;
+    }
+
+    /**
+     * @return Immutable list of the peers that answered, sorted by name.
+     */
     public List<ServiceInfo> getPeers() {
-        List<ServiceInfo> peers = new LinkedList<ServiceInfo>();
-        peers.addAll(discoveredPeers);
-        return peers;
+        return discoveredPeers.snapshot().infos();
+    }
+
+    /**
+     * @return What is known about each discovered peer, looked up by name or address.
+     */
+    public PeerRegistry getPeerRegistry() {
+        return discoveredPeers;
+    }
+
+    /**
+     * @return Round trip times measured with the given peer, null if it is not known.
+     */
+    public LatencyHistogram getLatency(String peerName) {
+        Peer peer = discoveredPeers.get(peerName);
+        return peer == null ? null : peer.getLatency();
+    }
+
+    /**
+     * @return Round trip times measured with all the peers since the service started.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return Milliseconds from the creation of the service until a peer first answered, -1 if none did yet.
+     */
+    public long getTimeToFirstPeerMillis() {
+        long first = firstPeerNanos;
+        return first < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(first - startedNanos);
     }
 
     public NetworkService(String nodeId, TCPServer serviceServer,
                           ServiceSetupHook setupStub, ServiceTeardownHook teardownStub) throws UnknownServiceException {
+        this(nodeId, serviceServer, null, setupStub, teardownStub);
+    }
+
+    /**
+     * @param discovery How to find the other peers, multicast DNS on the server's address if null.
+     */
+    public NetworkService(String nodeId, TCPServer serviceServer, Discovery discovery,
+                          ServiceSetupHook setupStub, ServiceTeardownHook teardownStub) throws UnknownServiceException {
         teardownHook = teardownStub;
         this.serviceServer = serviceServer;
 
@@ -117,33 +391,69 @@ public class NetworkService {
             throw new UnknownServiceException("Error during NSD setup");
         }
 
+        serviceServer.setReservedHandler(GOSSIP_REQUEST, peerTableRequests);
+        try {
+            datagramServer = new DatagramPingServer(serviceServer);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Pings over TCP only, cannot open a datagram socket: " + e.getMessage());
+        }
+
         Log.d(LOG_TAG, "Starting jmDNS serviceServer");
         try {
-            jmdns = JmDNS.create(serviceServer.listenAddress(), serviceServer.listenAddress().getHostName());
+            if (discovery == null)
+                discovery = new JmDNSDiscovery(serviceServer.listenAddress());
+            this.discovery = discovery;
 //                Define the behavior of serviceServer discovery.
-            jmdns.addServiceTypeListener(new PingPongServiceTypeListener());
+            discovery.watch(SERVICE_TYPE, new PingPongListener(discovery));
 
 //                Advertise the local serviceServer in the network
-            serviceInfo = ServiceInfo.create(SERVICE_TYPE, devId, serviceServer.listenPort(), "ping pong");
-            jmdns.registerService(serviceInfo);
+            serviceInfo = createServiceInfo();
+            discovery.register(serviceInfo);
         } catch (IOException e) {
             Log.e(LOG_TAG, "Error starting jmDNS instance" + e.getMessage());
         }
+
+        Metrics.shared().gauge(METRIC_PEERS, peerCount);
+        Metrics.shared().gauge(METRIC_SUSPECTS, suspectCount);
+
+        timer().schedule(liveness, LIVENESS_TICK_MS, LIVENESS_TICK_MS);
+        timer().schedule(loadAdvertisement, LOAD_ADVERTISE_INTERVAL_MS, LOAD_ADVERTISE_INTERVAL_MS);
+    }
+
+    private static synchronized Timer timer() {
+        if (timer == null)
+            timer = new Timer("NetworkService-timer", true);
+        return timer;
     }
 
     public boolean stop() {
+        liveness.cancel();
+        loadAdvertisement.cancel();
+        synchronized (this) {
+            if (addressWatch != null)
+                addressWatch.cancel();
+            if (gossip != null)
+                gossip.cancel();
+        }
+        setOnPeersChangedCallback(null);
+        Metrics.shared().remove(METRIC_PEERS, peerCount);
+        Metrics.shared().remove(METRIC_SUSPECTS, suspectCount);
+        savePeerCache();
         serviceServer.kill();
+        if (datagramServer != null)
+            datagramServer.kill();
+        if (transferServer != null)
+            transferServer.kill();
 
-        if (jmdns != null) {
-            jmdns.unregisterAllServices();
+        if (discovery != null) {
             try {
-                jmdns.close();
+                discovery.close();
             } catch (IOException e) {
                 Log.e(LOG_TAG, e.getMessage());
                 return false;
             }
             Log.i(LOG_TAG, "Services unregistered");
-            jmdns = null;
+            discovery = null;
         }
 
         teardownHook.teardown();
@@ -151,93 +461,1139 @@ public class NetworkService {
         return true;
     }
 
+    /**
+     * Pings the peers known when the node last stopped, without waiting for multicast
+     * DNS to find them again. Those that answer are listed right away, the peers are
+     * saved back to the same cache when the service stops.
+     */
+    public void warmStart(PeerCache cache) {
+        peerCache = cache;
+        List<PeerCache.Entry> entries = new ArrayList<PeerCache.Entry>(cache.load());
+        cachedPeers = entries;
+        Collections.sort(entries, new Comparator<PeerCache.Entry>() {
+            @Override
+            public int compare(PeerCache.Entry first, PeerCache.Entry second) {
+//                Most recently seen first, they are the most likely to still be around
+                return first.lastSeen > second.lastSeen ? -1 : (first.lastSeen == second.lastSeen ? 0 : 1);
+            }
+        });
+
+        long oldest = System.currentTimeMillis() - WARM_START_MAX_AGE_MS;
+        int tried = 0;
+        for (PeerCache.Entry entry : entries) {
+            if (entry.lastSeen < oldest || entry.addresses.length == 0 || discoveredPeers.contains(entry.name))
+                continue;
+            Map<String, String> text = new HashMap<String, String>();
+            if (entry.wireVersion > 0)
+                text.put(TXT_WIRE_VERSION, String.valueOf(entry.wireVersion));
+            synchronized (pendingPings) {
+                pendingPings.add(new AddressedServiceInfo(SERVICE_TYPE, entry.name, entry.port, text, entry.addresses));
+            }
+            tried++;
+        }
+        Log.i(LOG_TAG, "Revalidating " + tried + " of " + entries.size() + " cached peers");
+        pumpPings();
+    }
+
+    private void savePeerCache() {
+        if (peerCache == null)
+            return;
+        List<PeerCache.Entry> entries = new ArrayList<PeerCache.Entry>();
+        for (Peer peer : discoveredPeers.snapshot().peers) {
+            entries.add(new PeerCache.Entry(peer.getName(), peer.getAddresses(), peer.getPort(),
+                    wireVersion(peer.getInfo()), peer.getLastRttNanos(), peer.getLastSeen()));
+        }
+        long oldest = System.currentTimeMillis() - WARM_START_MAX_AGE_MS;
+        for (PeerCache.Entry entry : cachedPeers) {
+            if (entry.lastSeen >= oldest && !discoveredPeers.contains(entry.name))
+                entries.add(entry);
+        }
+        try {
+            peerCache.save(entries);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Cannot save the known peers: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return Port of the peer's datagram server, 0 if it does not advertise one.
+     */
+    private static int datagramPort(ServiceInfo peer) {
+        try {
+            return Integer.parseInt(peer.getPropertyString(TXT_DATAGRAM_PORT));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Chooses how peers advertising a datagram port are pinged, the others always get TCP.
+     * @param enabled One datagram each way if true, a TCP connection otherwise.
+     */
+    public void setDatagramPings(boolean enabled) {
+        datagramPings = enabled;
+    }
+
+    /**
+     * Turns gossip on or off, with DEFAULT_GOSSIP_FANOUT and DEFAULT_GOSSIP_INTERVAL_MS.
+     */
+    public void setGossip(boolean enabled) {
+        setGossip(enabled ? DEFAULT_GOSSIP_FANOUT : 0, DEFAULT_GOSSIP_INTERVAL_MS);
+    }
+
+    /**
+     * Learns peers from the other peers instead of only over multicast DNS. Every
+     * intervalMs, fanout random peers are asked for their peer table, and a newly resolved
+     * peer is asked right after its first ping. The peers in the tables that this node
+     * does not know yet are pinged, those that answer are listed and the discovery no
+     * longer queries for them. Peer tables are answered whether gossip is on or not.
+     * @param fanout Peers asked each round, 0 turns gossip off.
+     */
+    public synchronized void setGossip(int fanout, long intervalMs) {
+        if (gossip != null)
+            gossip.cancel();
+        gossip = null;
+        if (fanout <= 0)
+            return;
+        gossip = new GossipRound(fanout);
+        timer().schedule(gossip, intervalMs, intervalMs);
+    }
+
+    /**
+     * @return Frame version the peer advertises, 0 if none.
+     */
+    private static int wireVersion(ServiceInfo peer) {
+        try {
+            return Integer.parseInt(peer.getPropertyString(TXT_WIRE_VERSION));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Advertises the service under a new identity. The new name is announced first and
+     * the old one only withdrawn RETIRE_AFTER_MS later, so the node stays listed all along.
+     * The new advertisement names the old identity, peers that know it move it over to
+     * the new name instead of greeting the node again.
+     * @return False if the new identity could not be advertised, the old one is kept.
+     */
     public boolean changeId(String prefix) {
+        long started = System.nanoTime();
         String newId = prefix + new Random().nextInt();
-        if (newId.equals(devId)) {
-            return true;
-        } else {
-            jmdns.unregisterService(serviceInfo);
+        final ServiceInfo retired;
+        final Discovery source;
+        final String oldId;
+        synchronized (advertising) {
+            if (newId.equals(devId))
+                return true;
+            oldId = devId;
+            String oldPreviousId = previousId;
+            retired = serviceInfo;
+            source = discovery;
             devId = newId;
-            serviceInfo = ServiceInfo.create(SERVICE_TYPE, devId, serviceServer.listenPort(), "ping pong");
+            previousId = oldId;
+            ServiceInfo info = createServiceInfo();
             try {
-                jmdns.registerService(serviceInfo);
-                Log.d(LOG_TAG, "Identity changed and advertised");
-                return true;
+                source.register(info);
             } catch (IOException e) {
                 Log.e(LOG_TAG, "Cannot change identity: " + e.getMessage());
+                devId = oldId;
+                previousId = oldPreviousId;
                 return false;
             }
+            serviceInfo = info;
+        }
+        lastRenameMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        Log.i(LOG_TAG, "Identity changed to " + newId + ", advertised after " + lastRenameMillis + "ms");
+        timer().schedule(new TimerTask() {
+            @Override
+            public void run() {
+//                Withdrawing blocks until the goodbye is out, the timer must not
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        retire(source, retired, oldId);
+                    }
+                }, "NetworkService-retire").start();
+            }
+        }, RETIRE_AFTER_MS);
+        return true;
+    }
+
+    /**
+     * Withdraws an identity left behind by changeId(). From then on the node no longer
+     * answers to it, and its next advertisement stops naming it.
+     */
+    private void retire(Discovery source, ServiceInfo retired, String oldId) {
+//        After a move the old discovery was closed, along with what it advertised
+        if (source == discovery)
+            source.unregister(retired);
+        synchronized (advertising) {
+//            Unless another rename came since, which named the identity this one replaced
+            if (oldId.equals(previousId))
+                previousId = null;
+        }
+        Log.d(LOG_TAG, "Identity " + oldId + " withdrawn");
+    }
+
+    /**
+     * @return Milliseconds the last changeId() took to advertise the new identity, -1 if
+     * it never changed.
+     */
+    public long getLastRenameMillis() {
+        return lastRenameMillis;
+    }
+
+    /**
+     * Follows the node's address: once it changes, the service moves to endpoints on the
+     * new one, see rebind(). Without it, a new address (DHCP renewal, roaming) leaves
+     * the service listening and advertising on the old one.
+     */
+    public synchronized void watchAddress(Endpoints endpoints) {
+        if (addressWatch != null)
+            addressWatch.cancel();
+        addressWatch = new AddressWatch(endpoints);
+        timer().schedule(addressWatch, ADDRESS_CHECK_MS, ADDRESS_CHECK_MS);
+    }
+
+    /**
+     * @return Milliseconds the last move to a new address took, from noticing the change
+     * until the peers were pinged from the new address, -1 if the service never moved.
+     */
+    public long getLastRecoveryMillis() {
+        return lastRecoveryMillis;
+    }
+
+    /**
+     * Moves the service to another address without tearing it down. The new endpoints come
+     * up next to the old ones, the advertisement moves over and the known peers stay listed,
+     * they are pinged again from the new address. The old endpoints keep answering for
+     * RETIRE_AFTER_MS, for the requests already on their way, then they are retired.
+     * @param server Listening on the new address, with its request executor already set.
+     * @param newDiscovery On the new address, multicast DNS on the server's address if null.
+     * @return Completed with the recovery time in milliseconds, failed if the new endpoints
+     * could not be brought up, in which case the old ones are kept.
+     */
+    public ResponseFuture<Long> rebind(TCPServer server, Discovery newDiscovery) {
+        return rebind(server, newDiscovery, System.nanoTime());
+    }
+
+    private ResponseFuture<Long> rebind(TCPServer server, Discovery newDiscovery, final long sinceNanos) {
+        ResponseFuture<Long> recovered = new ResponseFuture<Long>();
+        final InetAddress address;
+        try {
+            address = server.listenAddress();
+        } catch (IllegalStateException e) {
+            Log.e(LOG_TAG, "Cannot move, the new server is not listening, staying on the old address");
+            recovered.fail(new IOException("Server not listening"));
+            return recovered;
+        }
+        Log.i(LOG_TAG, "Moving from " + serviceServer.listenAddress() + " to " + address);
+
+        server.setReservedHandler(GOSSIP_REQUEST, peerTableRequests);
+        DatagramPingServer newDatagramServer = null;
+        try {
+            newDatagramServer = new DatagramPingServer(server);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Pings over TCP only, cannot open a datagram socket: " + e.getMessage());
+        }
+        TransferServer newTransferServer = null;
+        final TCPServer oldServer;
+        final DatagramPingServer oldDatagramServer;
+        final TransferServer oldTransferServer;
+        final Discovery oldDiscovery;
+        synchronized (advertising) {
+            oldServer = serviceServer;
+            oldDatagramServer = datagramServer;
+            oldTransferServer = transferServer;
+            oldDiscovery = discovery;
+//            The old endpoints are left alone until the new ones are all up, they are only retired below
+            boolean moved = false;
+            try {
+                if (oldTransferServer != null)
+                    newTransferServer = new TransferServer(address, oldTransferServer.getDirectory());
+                if (newDiscovery == null)
+                    newDiscovery = new JmDNSDiscovery(address);
+                serviceServer = server;
+                datagramServer = newDatagramServer;
+                transferServer = newTransferServer;
+                ServiceInfo info = createServiceInfo();
+//                Only reports from the new discovery count from now on
+                discovery = newDiscovery;
+                newDiscovery.watch(SERVICE_TYPE, new PingPongListener(newDiscovery));
+                newDiscovery.register(info);
+                serviceInfo = info;
+                moved = true;
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Cannot move to " + address + ", staying on the old address: " + e.getMessage());
+                recovered.fail(e);
+            } finally {
+                if (!moved) {
+                    serviceServer = oldServer;
+                    datagramServer = oldDatagramServer;
+                    transferServer = oldTransferServer;
+                    discovery = oldDiscovery;
+                    if (server != oldServer)
+                        server.kill();
+                    if (newDatagramServer != null)
+                        newDatagramServer.kill();
+                    if (newTransferServer != null)
+                        newTransferServer.kill();
+                    if (newDiscovery != null && newDiscovery != oldDiscovery) {
+                        try {
+                            newDiscovery.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+            }
+            if (!moved)
+                return recovered;
         }
+//        Routes from the new address may differ, every peer gets raced again
+        preferredAddresses.clear();
+        Log.i(LOG_TAG, "Advertised on " + address + " after "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sinceNanos) + "ms");
+
+        final ResponseFuture<Long> done = recovered;
+        final TCPServer newServer = server;
+        final Discovery movedDiscovery = newDiscovery;
+        pingAll().addListener(new ResponseFuture.Listener<PingReport>() {
+            @Override
+            public void done(ResponseFuture<PingReport> response) {
+                long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sinceNanos);
+                lastRecoveryMillis = millis;
+                PingReport report = response.getNow();
+                Log.i(LOG_TAG, "Recovered on " + address + " in " + millis + "ms, "
+                        + (report == null ? 0 : report.successes()) + " of "
+                        + (report == null ? 0 : report.total()) + " peers reachable");
+                done.complete(millis);
+            }
+        });
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(RETIRE_AFTER_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (oldServer != newServer)
+                    oldServer.kill();
+                if (oldDatagramServer != null)
+                    oldDatagramServer.kill();
+                if (oldTransferServer != null)
+                    oldTransferServer.kill();
+                if (oldDiscovery != null && oldDiscovery != movedDiscovery) {
+                    try {
+                        oldDiscovery.close();
+                    } catch (IOException e) {
+                        Log.e(LOG_TAG, e.getMessage());
+                    }
+                }
+//                Peers that heard the old responder say goodbye dropped this node, announce it again
+                advertise();
+                Log.d(LOG_TAG, "Endpoints on " + oldServer.listenAddress() + " retired");
+            }
+        }, "NetworkService-retire").start();
+        return recovered;
     }
 
-    private class PingPongServiceTypeListener implements ServiceTypeListener {
+    /**
+     * Checks the node's address and moves the service when it changed.
+     */
+    private class AddressWatch extends TimerTask {
+        private final Endpoints endpoints;
+        /**
+         * Set while a move is in progress, moving takes longer than a check.
+         */
+        private volatile boolean moving;
+
+        AddressWatch(Endpoints endpoints) {
+            this.endpoints = endpoints;
+        }
+
         @Override
-        public void serviceTypeAdded(ServiceEvent event) {
-            // A new serviceServer provider was discovered, is it running the serviceServer I want ?
-            if (event.getType().equals(SERVICE_TYPE)) {
-                Log.d("LOG_TAG", "Same serviceServer discovered");
-
-                /**
-                 * I am interested in receiving events about this serviceServer type.
-                 */
-                jmdns.addServiceListener(event.getType(), new ServiceListener() {
-                    @Override
-                    public void serviceAdded(ServiceEvent serviceEvent) {
-                        Log.i(LOG_TAG, "Service added " + serviceEvent.getInfo().toString());
+        public void run() {
+            if (moving)
+                return;
+            final InetAddress current;
+            try {
+                current = endpoints.currentAddress();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Cannot tell the current address: " + e.getMessage());
+                return;
+            }
+//            No address at all is a gap in connectivity, there is nothing to move to yet
+            if (current == null || current.isAnyLocalAddress() || current.equals(serviceServer.listenAddress()))
+                return;
+            moving = true;
+            final long detected = System.nanoTime();
+//            Bringing up the new endpoints blocks, the timer must not
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    TCPServer server = null;
+                    Discovery next;
+                    try {
+                        server = endpoints.createServer(current);
+                        next = endpoints.createDiscovery(current);
+                    } catch (IOException e) {
+                        Log.e(LOG_TAG, "Cannot bring up endpoints on " + current + ": " + e.getMessage());
+                        if (server != null)
+                            server.kill();
+                        moving = false;
+                        return;
                     }
+                    rebind(server, next, detected).addListener(new ResponseFuture.Listener<Long>() {
+                        @Override
+                        public void done(ResponseFuture<Long> response) {
+                            moving = false;
+                        }
+                    });
+                }
+            }, "NetworkService-rebind").start();
+        }
+    }
 
-                    @Override
-                    public void serviceRemoved(ServiceEvent serviceEvent) {
-                        Log.i(LOG_TAG, "Service removed " + serviceEvent.getInfo().toString());
-                        discoveredPeers.remove(serviceEvent.getInfo());
-                        onRemove.handle(serviceEvent.getInfo());
+    /**
+     * Lets peers fetch the files of the directory, on a port of its own, and advertises it.
+     * Files already shared stop being so.
+     */
+    public boolean share(File directory) {
+        try {
+            TransferServer previous = transferServer;
+            transferServer = new TransferServer(serviceServer.listenAddress(), directory);
+            if (previous != null)
+                previous.kill();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Cannot share " + directory + ": " + e.getMessage());
+            return false;
+        }
+        Log.i(LOG_TAG, "Sharing " + directory + " on port " + transferServer.listenPort());
+        return advertise();
+    }
+
+    /**
+     * Announces the current TXT record, the service stays listed meanwhile.
+     */
+    private boolean advertise() {
+        synchronized (advertising) {
+            if (discovery == null || serviceInfo == null)
+                return true;
+            try {
+                discovery.updateText(serviceInfo, createText());
+                return true;
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Cannot update the advertisement: " + e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Downloads a file shared by a peer, without blocking. Streams fetch chunks in parallel,
+     * which pays off when a single connection cannot fill the link. Fetching the same file
+     * to the same destination after a failure resumes where it stopped.
+     * @param name File name in the directory the peer shares.
+     * @return Completed with the destination once the whole file is there.
+     */
+    public ResponseFuture<File> fetch(String peerName, String name, File destination, int streams) {
+        Peer peer = discoveredPeers.get(peerName);
+        int port = peer == null ? 0 : transferPort(peer.getInfo());
+        if (port <= 0 || peer.getAddresses().length == 0) {
+            ResponseFuture<File> unavailable = new ResponseFuture<File>();
+            unavailable.fail(new IOException(peerName + " does not share files"));
+            return unavailable;
+        }
+        InetAddress address = preferredAddress(peer.getInfo());
+        return TransferClient.shared().fetch(address != null ? address : peer.getAddresses()[0], port, name,
+                destination, streams);
+    }
+
+    /**
+     * @return Port of the peer's transfer server, 0 if it does not advertise one.
+     */
+    private static int transferPort(ServiceInfo peer) {
+        try {
+            return Integer.parseInt(peer.getPropertyString(TXT_TRANSFER_PORT));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return Advertisement of the local serviceServer under the current identity.
+     */
+    private ServiceInfo createServiceInfo() {
+        return ServiceInfo.create(SERVICE_TYPE, devId, serviceServer.listenPort(), 0, 0, createText());
+    }
+
+    private Map<String, String> createText() {
+        Map<String, String> text = new HashMap<String, String>();
+        text.put(TXT_WIRE_VERSION, String.valueOf(Frames.VERSION));
+        if (datagramServer != null)
+            text.put(TXT_DATAGRAM_PORT, String.valueOf(datagramServer.listenPort()));
+        if (transferServer != null)
+            text.put(TXT_TRANSFER_PORT, String.valueOf(transferServer.listenPort()));
+        text.put(TXT_LOAD, advertisedLoad.encode());
+        if (previousId != null)
+            text.put(TXT_PREVIOUS_ID, previousId);
+        return text;
+    }
+
+    /**
+     * Samples the server's load and advertises it if it changed noticeably.
+     */
+    private class LoadAdvertisement extends TimerTask {
+        @Override
+        public void run() {
+            ServerLoad load = serviceServer.sampleLoad();
+            if (!load.differsFrom(advertisedLoad))
+                return;
+            advertisedLoad = load;
+            advertise();
+        }
+    }
+
+    /**
+     * What choosePeer() balances.
+     */
+    public enum Balance {
+        /**
+         * Fewest requests on hand: those the peer advertises plus those this node has
+         * outstanding to it, which the advertisement does not show yet.
+         */
+        LEAST_LOADED,
+        /**
+         * Shortest round trip measured by this node plus the p99 service time the peer
+         * advertises. Peers not timed yet count as the fastest, so they get tried.
+         */
+        LOWEST_LATENCY
+    }
+
+    /**
+     * Picks a peer to send work to, by the power of two choices: of two peers picked
+     * at random, the one faring better. Unlike always picking the best one, this does
+     * not send everybody to the same peer while their view of the load is stale, and
+     * still avoids the worst ones. Suspect peers only win against other suspects.
+     * @return The chosen peer, null if none is known.
+     */
+    public Peer choosePeer(Balance balance) {
+        List<Peer> peers = discoveredPeers.snapshot().peers;
+        if (peers.isEmpty())
+            return null;
+        int first = random.nextInt(peers.size());
+        if (peers.size() == 1)
+            return peers.get(first);
+        int second = random.nextInt(peers.size() - 1);
+        if (second >= first)
+            second++;
+        Peer one = peers.get(first), other = peers.get(second);
+        return cost(other, balance) < cost(one, balance) ? other : one;
+    }
+
+    /**
+     * Sends a request to the peer choosePeer() picks, without blocking.
+     */
+    public ResponseFuture<String> send(String message, Balance balance, long timeoutMs) {
+        Peer peer = choosePeer(balance);
+        if (peer == null) {
+            ResponseFuture<String> nobody = new ResponseFuture<String>();
+            nobody.fail(new IOException("No peer known"));
+            return nobody;
+        }
+        return request(message, peer.getInfo(), timeoutMs);
+    }
+
+    private static long cost(Peer peer, Balance balance) {
+        long cost;
+        ServerLoad load = loadOf(peer.getInfo());
+        if (balance == Balance.LEAST_LOADED) {
+            cost = peer.getOutstanding() + (load == null ? 0 : load.pending());
+        } else {
+            cost = Math.max(0, peer.getLastRttNanos())
+                    + (load == null ? 0 : TimeUnit.MICROSECONDS.toNanos(load.p99Micros));
+        }
+        return peer.isSuspect() ? Long.MAX_VALUE / 2 + cost : cost;
+    }
+
+    /**
+     * @return Load the peer advertises, null if none.
+     */
+    public static ServerLoad loadOf(ServiceInfo peer) {
+        return ServerLoad.parse(peer.getPropertyString(TXT_LOAD));
+    }
+
+    /**
+     * Sends the request in the best format the peer advertises, without blocking.
+     */
+    private ResponseFuture<String> request(String message, ServiceInfo peer, long timeoutMs) {
+        InetAddress[] addresses = peer.getInetAddresses();
+        if (addresses.length == 0) {
+            ResponseFuture<String> unreachable = new ResponseFuture<String>();
+            unreachable.fail(new IOException("No address advertised by " + peer.getName()));
+            return unreachable;
+        }
+        final String name = peer.getName();
+        final InetAddress preferred = preferredAddress(peer);
+        InetAddress[] candidates = preferred != null ? new InetAddress[] { preferred }
+                : AsyncTCPClient.interleaveFamilies(addresses);
+
+        ResponseFuture<String> response;
+        boolean framed = String.valueOf(Frames.VERSION).equals(peer.getPropertyString(TXT_WIRE_VERSION));
+        int datagramPort = datagramPort(peer);
+//        Datagrams cannot race, a peer with several addresses is first reached over TCP to learn which one works
+        if (framed && datagramPings && datagramPort > 0 && candidates.length == 1) {
+            response = DatagramPingClient.shared().sendTo(message, candidates[0], datagramPort, peer.getPort(),
+                    timeoutMs);
+        } else {
+            ResponseFuture<InetAddress> connected = new ResponseFuture<InetAddress>();
+            connected.addListener(new ResponseFuture.Listener<InetAddress>() {
+                @Override
+                public void done(ResponseFuture<InetAddress> winner) {
+                    if (winner.getNow() != null)
+                        preferredAddresses.put(name, winner.getNow());
+                }
+            });
+            response = framed
+                    ? AsyncTCPClient.shared().sendFrame(message, candidates, peer.getPort(), timeoutMs, connected)
+                    : AsyncTCPClient.shared().sendTo(message, candidates, peer.getPort(), timeoutMs, connected);
+        }
+        final Peer known = discoveredPeers.get(name);
+        if (known != null) {
+            known.requestStarted();
+            response.addListener(new ResponseFuture.Listener<String>() {
+                @Override
+                public void done(ResponseFuture<String> future) {
+                    known.requestDone();
+                }
+            });
+        }
+        if (preferred != null) {
+            response.addListener(new ResponseFuture.Listener<String>() {
+                @Override
+                public void done(ResponseFuture<String> future) {
+//                    The next request races all the addresses again
+                    if (future.isFailed())
+                        preferredAddresses.remove(name, preferred);
+                }
+            });
+        }
+        return response;
+    }
+
+    /**
+     * @return Address the peer was last reached at, if it still advertises it, null otherwise.
+     */
+    private InetAddress preferredAddress(ServiceInfo peer) {
+        InetAddress preferred = preferredAddresses.get(peer.getName());
+        if (preferred == null)
+            return null;
+        for (InetAddress address : peer.getInetAddresses()) {
+            if (address.equals(preferred))
+                return preferred;
+        }
+        preferredAddresses.remove(peer.getName(), preferred);
+        return null;
+    }
+
+    /**
+     * Pings every peer currently known, DEFAULT_PING_PARALLELISM at a time, within PING_TIMEOUT_MS.
+     */
+    public ResponseFuture<PingReport> pingAll() {
+        return pingAll(DEFAULT_PING_PARALLELISM, PING_TIMEOUT_MS);
+    }
+
+    /**
+     * Pings every peer returned by getPeers(), without blocking.
+     * @param parallelism How many requests may be in flight at once.
+     * @param deadlineMs Time allowed for the whole broadcast. Peers that have not
+     *                   answered by then are reported as timed out.
+     * @return Completed once every peer answered, failed or timed out, on the thread
+     * that handled the last response.
+     */
+    public ResponseFuture<PingReport> pingAll(int parallelism, long deadlineMs) {
+        Broadcast broadcast = new Broadcast(getPeers(), parallelism, deadlineMs);
+        broadcast.pump();
+        return broadcast.report;
+    }
+
+    /**
+     * Keeps up to parallelism requests in flight, starting the next one as each completes.
+     * Every request is given what is left of the deadline, so none outlives it.
+     */
+    private class Broadcast {
+        final ResponseFuture<PingReport> report = new ResponseFuture<PingReport>();
+        final List<ServiceInfo> targets;
+        final int parallelism;
+        final long started = System.nanoTime();
+        final long deadline;
+
+        final Map<String, Long> rtts = new HashMap<String, Long>();
+        final Map<String, String> failures = new HashMap<String, String>();
+        final Set<String> timedOut = new HashSet<String>();
+        /**
+         * Targets a request was sent to, the others ran out of time before their turn.
+         */
+        final Set<String> contacted = new HashSet<String>();
+        int next;
+        int outstanding;
+        /**
+         * Set while a thread is starting requests, the others leave the work to it
+         * instead of nesting calls when responses complete right away.
+         */
+        boolean pumping;
+        boolean finished;
+
+        Broadcast(List<ServiceInfo> targets, int parallelism, long deadlineMs) {
+            this.targets = targets;
+            this.parallelism = Math.max(1, parallelism);
+            this.deadline = started + TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+        }
+
+        void pump() {
+            synchronized (this) {
+                if (pumping)
+                    return;
+                pumping = true;
+            }
+            while (true) {
+                ServiceInfo target = null;
+                long remainingMs;
+                synchronized (this) {
+                    remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remainingMs <= 0) {
+                        while (next < targets.size()) {
+                            timedOut.add(targets.get(next++).getName());
+                        }
+                    }
+                    if (outstanding >= parallelism || next >= targets.size()) {
+                        pumping = false;
+                        if (outstanding > 0 || finished)
+                            return;
+                        finished = true;
+                    } else {
+                        target = targets.get(next++);
+                        contacted.add(target.getName());
+                        outstanding++;
                     }
+                }
+                if (target == null) {
+                    finish();
+                    return;
+                }
+                start(target, remainingMs);
+            }
+        }
+
+        void start(final ServiceInfo target, long timeoutMs) {
+            final long sent = System.nanoTime();
+            PINGS.increment();
+            request(REQUEST_MESSAGE, target, timeoutMs).addListener(new ResponseFuture.Listener<String>() {
+                @Override
+                public void done(ResponseFuture<String> response) {
+                    long rtt = System.nanoTime() - sent;
+                    Throwable failure = response.getFailure();
+                    if (failure != null)
+                        PING_FAILURES.increment();
+                    if (failure == null) {
+                        latency.record(rtt);
+                        Peer peer = discoveredPeers.get(target.getName());
+                        if (peer != null)
+                            peer.answered(rtt);
+                    }
+                    synchronized (Broadcast.this) {
+                        if (failure == null)
+                            rtts.put(target.getName(), rtt);
+                        else if (failure instanceof SocketTimeoutException)
+                            timedOut.add(target.getName());
+                        else
+                            failures.put(target.getName(), String.valueOf(failure.getMessage()));
+                        outstanding--;
+                    }
+                    pump();
+                }
+            });
+        }
 
+        private void finish() {
+            PingReport result = new PingReport(rtts, failures, timedOut, System.nanoTime() - started);
+            Log.d(LOG_TAG, "Pinged all peers: " + result);
+            report.complete(result);
+        }
+    }
+
+    /**
+     * Starts the queued discovery pings, as long as fewer than MAX_DISCOVERY_PINGS are in flight.
+     * Same scheme as Broadcast.pump(), a single thread starts them at a time.
+     */
+    private void pumpPings() {
+        synchronized (pendingPings) {
+            if (pumpingPings)
+                return;
+            pumpingPings = true;
+        }
+        while (true) {
+            ServiceInfo peer;
+            synchronized (pendingPings) {
+                if (discoveryPings >= MAX_DISCOVERY_PINGS || pendingPings.isEmpty()) {
+                    pumpingPings = false;
+                    return;
+                }
+                peer = pendingPings.poll();
+                discoveryPings++;
+            }
+            ping(peer);
+        }
+    }
+
+    /**
+     * Greets a newly resolved peer, it is listed once it answers.
+     */
+    private void ping(final ServiceInfo peer) {
+        Log.i(LOG_TAG, "Requesting " + REQUEST_MESSAGE);
+        final long sent = System.nanoTime();
+        PINGS.increment();
+        request(REQUEST_MESSAGE, peer, PING_TIMEOUT_MS).addListener(new ResponseFuture.Listener<String>() {
+            @Override
+            public void done(ResponseFuture<String> response) {
+                synchronized (pendingPings) {
+                    discoveryPings--;
+                }
+                pumpPings();
+                final boolean learned = gossiped.remove(peer.getName());
+                if (response.getNow() == null) {
+                    PING_FAILURES.increment();
+                    Log.e(LOG_TAG, "Error in request:" + response.getFailure().getMessage());
+                    return;
+                }
+                final long rtt = System.nanoTime() - sent;
+                latency.record(rtt);
+                Log.d(LOG_TAG, response.getNow() + " in " + rtt / 1000 + "us");
+                mainThread.execute(new Runnable() {
                     @Override
-                    public void serviceResolved(final ServiceEvent serviceEvent) {
-                        Log.i(LOG_TAG, "Peer found " + serviceEvent.getInfo().toString());
-
-//                                    If I'm not the newly discovered peer, engage in communication
-                        if (!serviceEvent.getName().equals(devId)) {
-//                                        Send request to other peer
-                            new AsyncTask<String, String, ServiceInfo>() {
-                                @Override
-                                protected ServiceInfo doInBackground(String... strings) {
-                                    try {
-                                        for (InetAddress i : serviceEvent.getInfo().getInet4Addresses()) {
-                                            Log.d(LOG_TAG, "Other peer is: " + i.getHostAddress());
-                                        }
-                                        Log.i(LOG_TAG, "Requesting " + strings[0]);
-                                        final String response = TCPClient.sendTo(strings[0],
-                                                serviceEvent.getInfo().getInetAddresses()[0],
-                                                serviceEvent.getInfo().getPort());
-                                        Log.d(LOG_TAG, response);
-                                        return serviceEvent.getInfo();
-                                    } catch (IOException e) {
-                                        Log.e(LOG_TAG, "Error in request:" + e.getMessage());
-                                        return null;
-                                    }
-                                }
-
-                                @Override
-                                protected void onPostExecute(ServiceInfo s) {
-                                    discoveredPeers.add(s);
-                                    onNew.handle(s);
-                                }
-                            }.execute(REQUEST_MESSAGE);
-                        } else {
-                            Log.d(LOG_TAG, "I found myself");
+                    public void run() {
+                        boolean known = discoveredPeers.contains(peer.getName());
+                        discoveredPeers.put(peer).answered(rtt);
+                        if (firstPeerNanos < 0) {
+                            firstPeerNanos = System.nanoTime();
+                            Log.i(LOG_TAG, "First peer reachable after " + getTimeToFirstPeerMillis() + "ms");
+                        }
+//                        Peers may answer before the callbacks are set, they are still listed
+                        if (onNew != null)
+                            onNew.handle(peer);
+                        PeerChangeBatcher batch = changes;
+                        if (batch != null) {
+                            if (known)
+                                batch.updated(peer);
+                            else
+                                batch.added(peer);
                         }
-                    }});
+                        Discovery current = discovery;
+                        if (learned && current != null)
+                            current.learned(SERVICE_TYPE, peer.getName());
+                        else if (!known && gossip != null)
+                            gossipWith(peer);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return True if the service is this node's, under its current or previous identity.
+     */
+    private boolean isSelf(String name) {
+        return name.equals(devId) || name.equals(previousId);
+    }
+
+    /**
+     * Lists a peer that changed its identity under its new name, keeping what is known
+     * about it, if it is listed under the previous name it advertises, at the same port
+     * and one of the same addresses. It is not greeted again.
+     * @return False if the peer is to be greeted as a new one.
+     */
+    private boolean renamed(final ServiceInfo peer) {
+        final String previous = peer.getPropertyString(TXT_PREVIOUS_ID);
+        final Peer known = previous == null ? null : discoveredPeers.get(previous);
+        if (known == null || known.getPort() != peer.getPort() || !sharesAddress(known.getInfo(), peer)
+                || discoveredPeers.contains(peer.getName()))
+            return false;
+        mainThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (discoveredPeers.get(previous) != known || discoveredPeers.contains(peer.getName())) {
+//                    Changed meanwhile, the peer is greeted the usual way
+                    synchronized (pendingPings) {
+                        pendingPings.add(peer);
+                    }
+                    pumpPings();
+                    return;
+                }
+                InetAddress preferred = preferredAddresses.get(previous);
+                discoveredPeers.rename(previous, peer);
+                removed(known.getInfo());
+                if (preferred != null)
+                    preferredAddresses.put(peer.getName(), preferred);
+                Log.i(LOG_TAG, "Peer " + previous + " is now " + peer.getName());
+                if (onNew != null)
+                    onNew.handle(peer);
+                PeerChangeBatcher batch = changes;
+                if (batch != null)
+                    batch.added(peer);
+            }
+        });
+        return true;
+    }
+
+    private static boolean sharesAddress(ServiceInfo first, ServiceInfo second) {
+        for (InetAddress address : first.getInetAddresses()) {
+            for (InetAddress other : second.getInetAddresses()) {
+                if (address.equals(other))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reports a peer that was just taken off the list, on the callback thread.
+     */
+    private void removed(ServiceInfo info) {
+        preferredAddresses.remove(info.getName());
+        gossipDigests.remove(info.getName());
+        if (onRemove != null)
+            onRemove.handle(info);
+        PeerChangeBatcher batch = changes;
+        if (batch != null)
+            batch.removed(info);
+    }
+
+    /**
+     * Asks a peer for its table, without blocking, and pings the peers in it that are new.
+     */
+    private void gossipWith(ServiceInfo peer) {
+        final String name = peer.getName();
+        Long seen = gossipDigests.get(name);
+        String request = TCPServer.RESERVED_PREFIX + GOSSIP_REQUEST
+                + (seen == null ? "" : " " + Long.toHexString(seen));
+        request(request, peer, PING_TIMEOUT_MS).addListener(new ResponseFuture.Listener<String>() {
+            @Override
+            public void done(ResponseFuture<String> response) {
+                String table = response.getNow();
+//                Peers too old to gossip answer with whatever their server makes of the request
+                Long digest = table == null ? null : PeerDigest.parseDigest(table);
+                if (digest == null)
+                    return;
+                gossipDigests.put(name, digest);
+                learn(PeerDigest.decode(table));
+            }
+        });
+    }
+
+    /**
+     * Queues a ping to the peers this node does not know yet, unless the other node
+     * has not heard from them lately.
+     */
+    private void learn(List<PeerDigest.Entry> entries) {
+        int queued = 0;
+        for (PeerDigest.Entry entry : entries) {
+            if (entry.ageMs > GOSSIP_MAX_AGE_MS || entry.addresses.length == 0 || isSelf(entry.name)
+                    || discoveredPeers.contains(entry.name))
+                continue;
+            ServiceInfo info = new AddressedServiceInfo(SERVICE_TYPE, entry.name, entry.port, entry.text,
+                    entry.addresses);
+            if (renamed(info) || !gossiped.add(entry.name))
+                continue;
+            synchronized (pendingPings) {
+                pendingPings.add(info);
+            }
+            queued++;
+        }
+        if (queued == 0)
+            return;
+        Log.d(LOG_TAG, "Learned " + queued + " peers by gossip");
+        pumpPings();
+    }
+
+    /**
+     * Gossips with a few random peers, those not suspect.
+     */
+    private class GossipRound extends TimerTask {
+        private final int fanout;
+
+        GossipRound(int fanout) {
+            this.fanout = fanout;
+        }
+
+        @Override
+        public void run() {
+            List<Peer> candidates = new ArrayList<Peer>();
+            for (Peer peer : discoveredPeers.snapshot().peers) {
+                if (!peer.isSuspect())
+                    candidates.add(peer);
+            }
+            Collections.shuffle(candidates, random);
+            for (Peer peer : candidates.subList(0, Math.min(fanout, candidates.size()))) {
+                gossipWith(peer.getInfo());
+            }
+        }
+    }
+
+    /**
+     * Probes the peers that have been silent for too long, one batch per tick. A tick
+     * is skipped while the previous batch is still out, so a peer is never probed twice
+     * at once and the cost stays bounded whatever the number of peers.
+     */
+    private class LivenessCheck extends TimerTask {
+        /**
+         * Only touched by the timer thread and the batch's completion.
+         */
+        private volatile boolean probing;
+
+        @Override
+        public void run() {
+            if (probing)
+                return;
+            final List<Peer> due = due(System.currentTimeMillis());
+            if (due.isEmpty())
+                return;
+            List<ServiceInfo> targets = new ArrayList<ServiceInfo>(due.size());
+            for (Peer peer : due) {
+                targets.add(peer.getInfo());
+            }
+            probing = true;
+            final Broadcast batch = new Broadcast(targets, PROBE_PARALLELISM, PROBE_TIMEOUT_MS);
+            batch.report.addListener(new ResponseFuture.Listener<PingReport>() {
+                @Override
+                public void done(ResponseFuture<PingReport> response) {
+                    PingReport report = response.getNow();
+                    Set<String> contacted;
+                    synchronized (batch) {
+                        contacted = new HashSet<String>(batch.contacted);
+                    }
+                    for (Peer peer : due) {
+                        if (report.rttNanos.containsKey(peer.getName()))
+                            alive(peer);
+//                        Peers left waiting behind slow ones were not probed, they stay due for the next tick
+                        else if (contacted.contains(peer.getName()))
+                            missed(peer);
+                    }
+                    probing = false;
+                }
+            });
+            batch.pump();
+        }
 
-//                            Request information about the serviceServer.
-                jmdns.requestServiceInfo(event.getType(), event.getName());
+        /**
+         * @return Suspects, then the peers silent for longest past their interval, at most MAX_PROBES_PER_TICK.
+         */
+        private List<Peer> due(final long now) {
+            List<Peer> due = new ArrayList<Peer>();
+            for (Peer peer : discoveredPeers.snapshot().peers) {
+                if (peer.getProbeIntervalMs() == 0)
+                    peer.probed(0, MIN_PROBE_INTERVAL_MS);
+                if (peer.isSuspect() || now - peer.getLastSeen() >= peer.getProbeIntervalMs())
+                    due.add(peer);
             }
+            if (due.size() > MAX_PROBES_PER_TICK) {
+                Collections.sort(due, new Comparator<Peer>() {
+                    @Override
+                    public int compare(Peer first, Peer second) {
+                        if (first.isSuspect() != second.isSuspect())
+                            return first.isSuspect() ? -1 : 1;
+                        long firstLate = now - first.getLastSeen() - first.getProbeIntervalMs();
+                        long secondLate = now - second.getLastSeen() - second.getProbeIntervalMs();
+                        return firstLate > secondLate ? -1 : (firstLate == secondLate ? 0 : 1);
+                    }
+                });
+                due = new ArrayList<Peer>(due.subList(0, MAX_PROBES_PER_TICK));
+            }
+            return due;
+        }
+
+        private void alive(Peer peer) {
+            long interval = peer.isSuspect() ? MIN_PROBE_INTERVAL_MS
+                    : Math.min(MAX_PROBE_INTERVAL_MS, peer.getProbeIntervalMs() * 2);
+            peer.probed(0, interval);
+        }
+
+        private void missed(final Peer peer) {
+            final int missed = peer.getMissedProbes() + 1;
+            final long seen = peer.getLastSeen();
+            peer.probed(missed, MIN_PROBE_INTERVAL_MS);
+            if (missed == 1)
+                Log.i(LOG_TAG, "Peer " + peer + " is suspect");
+            if (missed < DEAD_AFTER_MISSES)
+                return;
+            mainThread.execute(new Runnable() {
+                @Override
+                public void run() {
+//                    Unless it answered meanwhile or was removed already
+                    if (peer.getLastSeen() != seen || discoveredPeers.get(peer.getName()) != peer)
+                        return;
+                    discoveredPeers.remove(peer.getName());
+                    Log.i(LOG_TAG, "Peer " + peer + " missed " + missed + " probes, removed");
+                    removed(peer.getInfo());
+                }
+            });
+        }
+    }
+
+    private class PingPongListener implements Discovery.Listener {
+        /**
+         * Once the service moved to another discovery, what the old one reports is stale.
+         */
+        private final Discovery source;
 
-            Log.i(LOG_TAG, "Service discovered: " + event.getType() + " : " + event.getName());
+        PingPongListener(Discovery source) {
+            this.source = source;
+        }
+
+        @Override
+        public void serviceAdded(String name) {
+            DISCOVERY_ADDED.increment();
+            Log.i(LOG_TAG, "Service added " + name);
         }
 
         @Override
-        public void subTypeForServiceTypeAdded(ServiceEvent ev) {}
+        public void serviceRemoved(final ServiceInfo info) {
+            if (source != discovery)
+                return;
+            DISCOVERY_REMOVED.increment();
+            Log.i(LOG_TAG, "Service removed " + info.toString());
+            mainThread.execute(new Runnable() {
+                @Override
+                public void run() {
+//                    The liveness checks may have removed it already
+                    if (discoveredPeers.remove(info.getName()) != null)
+                        removed(info);
+                }
+            });
+        }
+
+        @Override
+        public void serviceResolved(final ServiceInfo peer) {
+            if (source != discovery)
+                return;
+            DISCOVERY_RESOLVED.increment();
+            Log.i(LOG_TAG, "Peer found " + peer.toString());
+
+//            If I'm not the newly discovered peer, engage in communication
+            if (!isSelf(peer.getName())) {
+                for (InetAddress i : peer.getInet4Addresses()) {
+                    Log.d(LOG_TAG, "Other peer is: " + i.getHostAddress());
+                }
+                if (renamed(peer))
+                    return;
+                synchronized (pendingPings) {
+                    pendingPings.add(peer);
+                }
+                pumpPings();
+            } else {
+                Log.d(LOG_TAG, "I found myself");
+            }
+        }
     }
 }
@@ -0,0 +1,148 @@
+package org.pdsd.pingpong.service;
+
+import org.pdsd.pingpong.network.LatencyHistogram;
+
+import javax.jmdns.ServiceInfo;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger,  osmosis.7.radustoe@spamgourmet.com
+ *
+ * What is known about a discovered peer. The identity (name) is fixed, the rest is
+ * updated in place as the peer is seen again, so readers always get the latest values.
+ */
+public class Peer {
+    private final String name;
+    private volatile ServiceInfo info;
+    private volatile long lastSeen;
+    private volatile long lastRttNanos = -1;
+    /**
+     * Health check state, only changed by the service's liveness checks.
+     */
+    private volatile int missedProbes;
+    private volatile long probeIntervalMs;
+    private final LatencyHistogram latency;
+    /**
+     * Requests sent to the peer that did not complete yet.
+     */
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    Peer(ServiceInfo info) {
+        this.name = info.getName();
+        this.info = info;
+        this.lastSeen = System.currentTimeMillis();
+        this.latency = new LatencyHistogram();
+    }
+
+    /**
+     * The same peer under a new name, with what was measured under the previous one.
+     */
+    Peer(ServiceInfo info, Peer previous) {
+        this.name = info.getName();
+        this.info = info;
+        this.lastSeen = System.currentTimeMillis();
+        this.lastRttNanos = previous.lastRttNanos;
+        this.missedProbes = previous.missedProbes;
+        this.probeIntervalMs = previous.probeIntervalMs;
+        this.latency = previous.latency;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Latest advertisement of the peer.
+     */
+    public ServiceInfo getInfo() {
+        return info;
+    }
+
+    public InetAddress[] getAddresses() {
+        return info.getInetAddresses();
+    }
+
+    public int getPort() {
+        return info.getPort();
+    }
+
+    /**
+     * @return When the peer was last heard of, in milliseconds since the epoch.
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * @return Round trip time of the last successful exchange, -1 if none was timed.
+     */
+    public long getLastRttNanos() {
+        return lastRttNanos;
+    }
+
+    /**
+     * @return Round trip times of the successful exchanges with the peer.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return True if the peer stopped answering health checks and may be gone.
+     */
+    public boolean isSuspect() {
+        return missedProbes > 0;
+    }
+
+    /**
+     * @return Health checks in a row the peer did not answer.
+     */
+    public int getMissedProbes() {
+        return missedProbes;
+    }
+
+    /**
+     * @return How long the peer may stay silent before it is checked, 0 until first checked.
+     */
+    public long getProbeIntervalMs() {
+        return probeIntervalMs;
+    }
+
+    /**
+     * @return Requests this node sent to the peer and is still waiting for.
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    void requestStarted() {
+        outstanding.incrementAndGet();
+    }
+
+    void requestDone() {
+        outstanding.decrementAndGet();
+    }
+
+    void probed(int missed, long intervalMs) {
+        this.missedProbes = missed;
+        this.probeIntervalMs = intervalMs;
+    }
+
+    void update(ServiceInfo info) {
+        this.info = info;
+        this.lastSeen = System.currentTimeMillis();
+    }
+
+    void answered(long rttNanos) {
+        this.lastRttNanos = rttNanos;
+        latency.record(rttNanos);
+        this.lastSeen = System.currentTimeMillis();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
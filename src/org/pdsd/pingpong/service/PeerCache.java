@@ -0,0 +1,185 @@
+package org.pdsd.pingpong.service;
+
+import org.pdsd.pingpong.platform.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger,  osmosis.7.radustoe@spamgourmet.com
+ *
+ * The peers known when the node last stopped, kept on disk so the next start can
+ * reach them right away instead of waiting for multicast DNS.
+ *
+ * The file is a header (magic, version, count) followed by one record per peer:
+ * name length (2 bytes), UTF-8 name, port (2), wire version (1), last RTT in
+ * nanoseconds (8), last seen in milliseconds since the epoch (8), address count (1)
+ * and for each address its length (1) and bytes. It is read through a memory mapping
+ * and replaced as a whole when saved.
+ */
+public class PeerCache {
+    private static final String LOG_TAG = "Peer Cache";
+
+    private static final int MAGIC = 0x50504331;
+    private static final byte VERSION = 1;
+    private static final int HEADER_LENGTH = 4 + 1 + 4;
+    private static final int MAX_NAME_BYTES = 0xffff;
+    private static final int MAX_ADDRESSES = 0xff;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+
+    /**
+     * What was known about one peer.
+     */
+    public static class Entry {
+        public final String name;
+        public final InetAddress[] addresses;
+        public final int port;
+        /**
+         * Frame version from the peer's TXT record, 0 if it only speaks the UTF exchange.
+         */
+        public final int wireVersion;
+        public final long lastRttNanos;
+        public final long lastSeen;
+
+        public Entry(String name, InetAddress[] addresses, int port, int wireVersion, long lastRttNanos,
+                     long lastSeen) {
+            this.name = name;
+            this.addresses = addresses;
+            this.port = port;
+            this.wireVersion = wireVersion;
+            this.lastRttNanos = lastRttNanos;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    public PeerCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return The saved peers, none if the file is missing or unreadable.
+     */
+    public List<Entry> load() {
+        if (!file.isFile())
+            return Collections.emptyList();
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return parse(map);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Cannot read " + file + ": " + e.getMessage());
+        } catch (BufferUnderflowException e) {
+            Log.e(LOG_TAG, "Truncated " + file);
+        } finally {
+            close(raf);
+        }
+        return Collections.emptyList();
+    }
+
+    private static List<Entry> parse(ByteBuffer in) throws IOException {
+        if (in.remaining() < HEADER_LENGTH || in.getInt() != MAGIC || in.get() != VERSION)
+            throw new IOException("Not a peer cache");
+        int count = in.getInt();
+        if (count < 0)
+            throw new IOException("Corrupt peer count " + count);
+        List<Entry> entries = new ArrayList<Entry>(Math.min(count, in.remaining()));
+        for (int i = 0; i < count; i++) {
+            byte[] name = new byte[in.getShort() & 0xffff];
+            in.get(name);
+            int port = in.getShort() & 0xffff;
+            int wireVersion = in.get() & 0xff;
+            long lastRtt = in.getLong();
+            long lastSeen = in.getLong();
+            InetAddress[] addresses = new InetAddress[in.get() & 0xff];
+            for (int a = 0; a < addresses.length; a++) {
+                byte[] address = new byte[in.get() & 0xff];
+                in.get(address);
+                addresses[a] = InetAddress.getByAddress(address);
+            }
+            entries.add(new Entry(new String(name, UTF8), addresses, port, wireVersion, lastRtt, lastSeen));
+        }
+        return entries;
+    }
+
+    /**
+     * Replaces the saved peers. The new file is written aside and renamed over the
+     * old one, a crash never leaves a half written cache behind.
+     */
+    public void save(List<Entry> entries) throws IOException {
+        List<byte[]> names = new ArrayList<byte[]>(entries.size());
+        int size = HEADER_LENGTH;
+        for (Entry entry : entries) {
+            byte[] name = entry.name.getBytes(UTF8);
+            names.add(name);
+            size += 2 + Math.min(name.length, MAX_NAME_BYTES) + 2 + 1 + 8 + 8 + 1;
+            for (int a = 0; a < Math.min(entry.addresses.length, MAX_ADDRESSES); a++) {
+                size += 1 + entry.addresses[a].getAddress().length;
+            }
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(MAGIC).put(VERSION).putInt(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            byte[] name = names.get(i);
+            out.putShort((short) Math.min(name.length, MAX_NAME_BYTES));
+            out.put(name, 0, Math.min(name.length, MAX_NAME_BYTES));
+            out.putShort((short) entry.port);
+            out.put((byte) entry.wireVersion);
+            out.putLong(entry.lastRttNanos);
+            out.putLong(entry.lastSeen);
+            int count = Math.min(entry.addresses.length, MAX_ADDRESSES);
+            out.put((byte) count);
+            for (int a = 0; a < count; a++) {
+                byte[] address = entry.addresses[a].getAddress();
+                out.put((byte) address.length);
+                out.put(address);
+            }
+        }
+        out.flip();
+
+        File written = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(written);
+        try {
+            FileChannel channel = stream.getChannel();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            stream.getFD().sync();
+        } finally {
+            close(stream);
+        }
+        if (!written.renameTo(file)) {
+            written.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+        Log.d(LOG_TAG, "Saved " + entries.size() + " peers, " + size + " bytes");
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.getMessage());
+        }
+    }
+}
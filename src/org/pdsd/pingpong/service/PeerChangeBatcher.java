@@ -0,0 +1,152 @@
+package org.pdsd.pingpong.service;
+
+import javax.jmdns.ServiceInfo;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Executor;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger,  osmosis.7.radustoe@spamgourmet.com
+ *
+ * Collects the peer events of a window and hands them over as one PeerChanges.
+ * The window opens with the first event and is cut short once maxBatch peers
+ * changed. Events about the same peer are merged, an add followed by a remove
+ * cancels out and a remove followed by an add is an update.
+ */
+class PeerChangeBatcher {
+    private enum Kind { ADDED, UPDATED, REMOVED }
+
+    private static class Change {
+        final Kind kind;
+        final ServiceInfo info;
+
+        Change(Kind kind, ServiceInfo info) {
+            this.kind = kind;
+            this.info = info;
+        }
+    }
+
+    private final NetworkService.PeerChangeHandler handler;
+    private final long windowMs;
+    private final int maxBatch;
+    private final Timer timer;
+    private final Executor callbacks;
+
+    /**
+     * Pending change of each peer, by name, in order of first change. Guarded by the batcher.
+     */
+    private Map<String, Change> pending = new LinkedHashMap<String, Change>();
+    private TimerTask flush;
+    private volatile boolean cancelled;
+
+    PeerChangeBatcher(NetworkService.PeerChangeHandler handler, long windowMs, int maxBatch, Timer timer,
+                      Executor callbacks) {
+        this.handler = handler;
+        this.windowMs = windowMs;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.timer = timer;
+        this.callbacks = callbacks;
+    }
+
+    void added(ServiceInfo info) {
+        record(Kind.ADDED, info);
+    }
+
+    void updated(ServiceInfo info) {
+        record(Kind.UPDATED, info);
+    }
+
+    void removed(ServiceInfo info) {
+        record(Kind.REMOVED, info);
+    }
+
+    private synchronized void record(Kind kind, ServiceInfo info) {
+        if (cancelled)
+            return;
+        Change previous = pending.get(info.getName());
+        Kind merged = previous == null ? kind : merge(previous.kind, kind);
+        if (merged == null)
+            pending.remove(info.getName());
+        else
+            pending.put(info.getName(), new Change(merged, info));
+
+        if (pending.size() >= maxBatch) {
+            flush();
+        } else if (flush == null && !pending.isEmpty()) {
+            flush = new TimerTask() {
+                @Override
+                public void run() {
+                    synchronized (PeerChangeBatcher.this) {
+//                        Unless a full batch went out meanwhile and a new window started
+                        if (flush == this)
+                            flush();
+                    }
+                }
+            };
+            timer.schedule(flush, windowMs);
+        }
+    }
+
+    /**
+     * @return What the two changes amount to, null if nothing.
+     */
+    private static Kind merge(Kind first, Kind then) {
+        switch (first) {
+            case ADDED:
+                return then == Kind.REMOVED ? null : Kind.ADDED;
+            case UPDATED:
+                return then == Kind.REMOVED ? Kind.REMOVED : Kind.UPDATED;
+            default:
+//                Listed before the batch and again after it
+                return then == Kind.REMOVED ? Kind.REMOVED : Kind.UPDATED;
+        }
+    }
+
+    /**
+     * Hands the pending changes to the callback thread. Done under the lock so the
+     * batches reach it in order.
+     */
+    synchronized void flush() {
+        if (flush != null) {
+            flush.cancel();
+            flush = null;
+        }
+        if (pending.isEmpty() || cancelled)
+            return;
+        List<ServiceInfo> added = new ArrayList<ServiceInfo>();
+        List<ServiceInfo> updated = new ArrayList<ServiceInfo>();
+        List<ServiceInfo> removed = new ArrayList<ServiceInfo>();
+        for (Change change : pending.values()) {
+            if (change.kind == Kind.ADDED)
+                added.add(change.info);
+            else if (change.kind == Kind.UPDATED)
+                updated.add(change.info);
+            else
+                removed.add(change.info);
+        }
+        pending = new LinkedHashMap<String, Change>();
+        final PeerChanges changes = new PeerChanges(added, updated, removed);
+        callbacks.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!cancelled)
+                    handler.handle(changes);
+            }
+        });
+    }
+
+    /**
+     * Drops the pending changes, none is delivered anymore.
+     */
+    synchronized void cancel() {
+        cancelled = true;
+        if (flush != null)
+            flush.cancel();
+        pending.clear();
+    }
+}
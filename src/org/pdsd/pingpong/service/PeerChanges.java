@@ -0,0 +1,45 @@
+package org.pdsd.pingpong.service;
+
+import javax.jmdns.ServiceInfo;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger,  osmosis.7.radustoe@spamgourmet.com
+ *
+ * How the listed peers changed over one batch. A peer appears in at most one of the
+ * three lists, with its latest advertisement. Peers that came and went within the
+ * batch are not reported at all.
+ */
+public class PeerChanges {
+    /**
+     * Peers that were not listed before the batch.
+     */
+    public final List<ServiceInfo> added;
+    /**
+     * Listed peers that answered again, possibly with a new advertisement.
+     */
+    public final List<ServiceInfo> updated;
+    public final List<ServiceInfo> removed;
+
+    PeerChanges(List<ServiceInfo> added, List<ServiceInfo> updated, List<ServiceInfo> removed) {
+        this.added = Collections.unmodifiableList(new ArrayList<ServiceInfo>(added));
+        this.updated = Collections.unmodifiableList(new ArrayList<ServiceInfo>(updated));
+        this.removed = Collections.unmodifiableList(new ArrayList<ServiceInfo>(removed));
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && updated.isEmpty() && removed.isEmpty();
+    }
+
+    public int size() {
+        return added.size() + updated.size() + removed.size();
+    }
+
+    @Override
+    public String toString() {
+        return added.size() + " added, " + updated.size() + " updated, " + removed.size() + " removed";
+    }
+}
@@ -0,0 +1,281 @@
+package org.pdsd.pingpong.service;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger,  osmosis.7.radustoe@spamgourmet.com
+ *
+ * The peer table as gossiping nodes exchange it. The first line is a digest of the
+ * names, ports and addresses of the peers, in hex. If it differs from the digest the
+ * asking node saw last, one line per peer follows, with tab separated fields: name,
+ * port, milliseconds since the peer last answered, its addresses separated by commas,
+ * then its TXT record as key=value pairs.
+ *
+ * The registry takes a new snapshot whenever a peer is refreshed, which is all the time,
+ * while the digest only depends on the names, ports and addresses. Those of the last
+ * digested peers are kept, the digest is only computed again once one of them differs.
+ */
+class PeerDigest {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final PeerRegistry registry;
+    private PeerRegistry.Snapshot digested;
+    /**
+     * What the digest was computed from, one entry per peer in the snapshot's order.
+     */
+    private Identity[] identities = new Identity[0];
+    /**
+     * Digest of no peers at all, until some are digested.
+     */
+    private long digest = FNV_OFFSET;
+
+    /**
+     * The fields of a peer the digest covers.
+     */
+    private static class Identity {
+        final String name;
+        final int port;
+        final InetAddress[] addresses;
+
+        Identity(Peer peer) {
+            name = peer.getName();
+            port = peer.getPort();
+            addresses = peer.getAddresses().clone();
+        }
+
+        boolean sameAs(Peer peer) {
+            return name.equals(peer.getName()) && port == peer.getPort()
+                    && Arrays.equals(addresses, peer.getAddresses());
+        }
+    }
+
+    /**
+     * What a peer table says about one peer.
+     */
+    static class Entry {
+        final String name;
+        final int port;
+        final long ageMs;
+        final InetAddress[] addresses;
+        final Map<String, String> text;
+
+        Entry(String name, int port, long ageMs, InetAddress[] addresses, Map<String, String> text) {
+            this.name = name;
+            this.port = port;
+            this.ageMs = ageMs;
+            this.addresses = addresses;
+            this.text = text;
+        }
+    }
+
+    PeerDigest(PeerRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * @return Digest of the current peers.
+     */
+    long current() {
+        return digestOf(registry.snapshot());
+    }
+
+    private synchronized long digestOf(PeerRegistry.Snapshot snapshot) {
+        if (digested == snapshot)
+            return digest;
+        digested = snapshot;
+        if (unchanged(snapshot.peers))
+            return digest;
+        Identity[] fresh = new Identity[snapshot.peers.size()];
+        for (int i = 0; i < fresh.length; i++) {
+            fresh[i] = new Identity(snapshot.peers.get(i));
+        }
+        identities = fresh;
+        digest = digest(fresh);
+        return digest;
+    }
+
+    private boolean unchanged(List<Peer> peers) {
+        if (peers.size() != identities.length)
+            return false;
+        for (int i = 0; i < identities.length; i++) {
+            if (!identities[i].sameAs(peers.get(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param known Digest the asking node saw last.
+     * @return The table, just its digest if the asking node has seen it already.
+     */
+    String encode(long known) {
+        PeerRegistry.Snapshot snapshot = registry.snapshot();
+        long current = digestOf(snapshot);
+        StringBuilder table = new StringBuilder(Long.toHexString(current));
+        if (current == known)
+            return table.toString();
+        long now = System.currentTimeMillis();
+        for (Peer peer : snapshot.peers) {
+            String line = line(peer, now);
+            if (line != null)
+                table.append('\n').append(line);
+        }
+        return table.toString();
+    }
+
+    /**
+     * @return Digest of the table, null if the response is not a peer table.
+     */
+    static Long parseDigest(String table) {
+        int end = table.indexOf('\n');
+        try {
+//            Unsigned, a digest takes all 64 bits
+            String hex = end < 0 ? table : table.substring(0, end);
+            if (hex.length() == 0 || hex.length() > 16)
+                return null;
+            return new BigInteger(hex, 16).longValue();
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The peers of the table, the malformed lines left out.
+     */
+    static List<Entry> decode(String table) {
+        String[] lines = table.split("\n");
+        if (lines.length < 2)
+            return Collections.emptyList();
+        List<Entry> entries = new ArrayList<Entry>(lines.length - 1);
+        for (int i = 1; i < lines.length; i++) {
+            Entry entry = decodeLine(lines[i]);
+            if (entry != null)
+                entries.add(entry);
+        }
+        return entries;
+    }
+
+    private static Entry decodeLine(String line) {
+        String[] fields = line.split("\t");
+        if (fields.length < 4 || fields[0].length() == 0)
+            return null;
+        try {
+            int port = Integer.parseInt(fields[1]);
+            if (port < 1 || port > 65535)
+                return null;
+            long ageMs = Long.parseLong(fields[2]);
+            String[] literals = fields[3].length() == 0 ? new String[0] : fields[3].split(",");
+            InetAddress[] addresses = new InetAddress[literals.length];
+            for (int a = 0; a < literals.length; a++) {
+//                Only address literals are accepted, a host name would be looked up
+                if (!isAddressLiteral(literals[a]))
+                    return null;
+                addresses[a] = InetAddress.getByName(literals[a]);
+            }
+            Map<String, String> text = new HashMap<String, String>();
+            for (int f = 4; f < fields.length; f++) {
+                int equals = fields[f].indexOf('=');
+                if (equals > 0)
+                    text.put(fields[f].substring(0, equals), fields[f].substring(equals + 1));
+            }
+            return new Entry(fields[0], port, ageMs, addresses, text);
+        } catch (NumberFormatException e) {
+            return null;
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Dotted quad, or IPv6 made of hex digits, colons and an optional dotted quad at
+     * the end. InetAddress parses those without asking a name server.
+     */
+    private static boolean isAddressLiteral(String address) {
+        if (address.indexOf(':') >= 0) {
+            for (int i = 0; i < address.length(); i++) {
+                char c = address.charAt(i);
+                if (c != ':' && c != '.' && Character.digit(c, 16) < 0)
+                    return false;
+            }
+            return address.indexOf(':') != address.lastIndexOf(':');
+        }
+        String[] parts = address.split("\\.", -1);
+        if (parts.length != 4)
+            return false;
+        for (String part : parts) {
+            if (part.length() == 0 || part.length() > 3)
+                return false;
+            for (int i = 0; i < part.length(); i++) {
+                if (part.charAt(i) < '0' || part.charAt(i) > '9')
+                    return false;
+            }
+            if (Integer.parseInt(part) > 255)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * FNV-1a over what identifies each peer, in the snapshot's order (by name).
+     */
+    private static long digest(Identity[] peers) {
+        long hash = FNV_OFFSET;
+        for (Identity peer : peers) {
+            hash = mix(hash, peer.name);
+            hash = mix(hash, String.valueOf(peer.port));
+            for (InetAddress address : peer.addresses) {
+                hash = mix(hash, address.getHostAddress());
+            }
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, String field) {
+        for (int i = 0; i < field.length(); i++) {
+            hash = (hash ^ field.charAt(i)) * FNV_PRIME;
+        }
+//        Field separator, so that "ab" + "c" and "a" + "bc" differ
+        return (hash ^ 0xff) * FNV_PRIME;
+    }
+
+    /**
+     * @return The peer as a line of the table, null if its name would break the format.
+     * TXT entries that would are left out.
+     */
+    private static String line(Peer peer, long now) {
+        if (!clean(peer.getName()))
+            return null;
+        StringBuilder line = new StringBuilder();
+        line.append(peer.getName()).append('\t').append(peer.getPort())
+                .append('\t').append(Math.max(0, now - peer.getLastSeen())).append('\t');
+        InetAddress[] addresses = peer.getAddresses();
+        for (int a = 0; a < addresses.length; a++) {
+            if (a > 0)
+                line.append(',');
+            line.append(addresses[a].getHostAddress());
+        }
+        Enumeration<String> names = peer.getInfo().getPropertyNames();
+        while (names.hasMoreElements()) {
+            String key = names.nextElement();
+            String value = peer.getInfo().getPropertyString(key);
+            if (value != null && clean(key) && key.indexOf('=') < 0 && clean(value))
+                line.append('\t').append(key).append('=').append(value);
+        }
+        return line.toString();
+    }
+
+    private static boolean clean(String field) {
+        return field.indexOf('\t') < 0 && field.indexOf('\n') < 0;
+    }
+}
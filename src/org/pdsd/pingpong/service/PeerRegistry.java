@@ -0,0 +1,164 @@
+package org.pdsd.pingpong.service;
+
+import javax.jmdns.ServiceInfo;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger,  osmosis.7.radustoe@spamgourmet.com
+ *
+ * Thread safe table of the discovered peers, indexed by name and by address.
+ *
+ * Every change bumps a version. Listing the peers returns an immutable snapshot,
+ * sorted by name, that is built once per version and shared by every reader
+ * until the next change.
+ */
+public class PeerRegistry {
+    private static final Comparator<Peer> BY_NAME = new Comparator<Peer>() {
+        @Override
+        public int compare(Peer first, Peer second) {
+            return first.getName().compareTo(second.getName());
+        }
+    };
+
+    private final ConcurrentMap<String, Peer> byName = new ConcurrentHashMap<String, Peer>();
+    private final ConcurrentMap<InetAddress, Peer> byAddress = new ConcurrentHashMap<InetAddress, Peer>();
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(0, Collections.<Peer>emptyList());
+
+    /**
+     * The peers as they were at a given version.
+     */
+    public static class Snapshot {
+        public final long version;
+        public final List<Peer> peers;
+        private volatile List<ServiceInfo> infos;
+
+        Snapshot(long version, List<Peer> peers) {
+            this.version = version;
+            this.peers = peers;
+        }
+
+        /**
+         * @return Advertisements of the peers, in the same order.
+         */
+        public List<ServiceInfo> infos() {
+            List<ServiceInfo> result = infos;
+            if (result == null) {
+                List<ServiceInfo> built = new ArrayList<ServiceInfo>(peers.size());
+                for (Peer peer : peers) {
+                    built.add(peer.getInfo());
+                }
+                result = Collections.unmodifiableList(built);
+                infos = result;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Adds the peer, or refreshes what is known about it.
+     * @return Its entry in the registry.
+     */
+    public Peer put(ServiceInfo info) {
+        Peer peer = byName.get(info.getName());
+        if (peer == null) {
+            Peer created = new Peer(info);
+            peer = byName.putIfAbsent(info.getName(), created);
+            if (peer == null)
+                peer = created;
+        }
+        if (peer.getInfo() != info) {
+            unindexAddresses(peer);
+            peer.update(info);
+        }
+        for (InetAddress address : info.getInetAddresses()) {
+            byAddress.put(address, peer);
+        }
+        version.incrementAndGet();
+        return peer;
+    }
+
+    /**
+     * Lists a peer under the name it now goes by, keeping what was known about it.
+     * @return Its new entry, null if there was no peer by the previous name.
+     */
+    public Peer rename(String previous, ServiceInfo info) {
+        Peer old = byName.remove(previous);
+        if (old == null)
+            return null;
+        unindexAddresses(old);
+        Peer renamed = new Peer(info, old);
+        byName.put(info.getName(), renamed);
+        for (InetAddress address : info.getInetAddresses()) {
+            byAddress.put(address, renamed);
+        }
+        version.incrementAndGet();
+        return renamed;
+    }
+
+    /**
+     * @return The removed entry, null if there was no peer by that name.
+     */
+    public Peer remove(String name) {
+        Peer peer = byName.remove(name);
+        if (peer != null) {
+            unindexAddresses(peer);
+            version.incrementAndGet();
+        }
+        return peer;
+    }
+
+    private void unindexAddresses(Peer peer) {
+        for (InetAddress address : peer.getAddresses()) {
+            byAddress.remove(address, peer);
+        }
+    }
+
+    public Peer get(String name) {
+        return byName.get(name);
+    }
+
+    public Peer getByAddress(InetAddress address) {
+        return byAddress.get(address);
+    }
+
+    public boolean contains(String name) {
+        return byName.containsKey(name);
+    }
+
+    public int size() {
+        return byName.size();
+    }
+
+    /**
+     * @return Incremented by every change to the set of peers.
+     */
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * @return Immutable view of the current peers, sorted by name.
+     */
+    public Snapshot snapshot() {
+        Snapshot current = snapshot;
+        long now = version.get();
+        if (current.version == now)
+            return current;
+
+        List<Peer> peers = new ArrayList<Peer>(byName.values());
+        Collections.sort(peers, BY_NAME);
+        Snapshot fresh = new Snapshot(now, Collections.unmodifiableList(peers));
+//        A concurrent change may make it stale right away, the next call rebuilds it
+        snapshot = fresh;
+        return fresh;
+    }
+}
@@ -0,0 +1,54 @@
+package org.pdsd.pingpong.service;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Author: Radu Stoenescu
+ * Don't be a stranger,  osmosis.7.radustoe@spamgourmet.com
+ *
+ * Outcome of pinging every known peer at once. Each peer appears in exactly one
+ * of the three groups, keyed by its name.
+ */
+public class PingReport {
+    /**
+     * Round trip time in nanoseconds of each peer that answered.
+     */
+    public final Map<String, Long> rttNanos;
+    /**
+     * Why each failed peer did not answer.
+     */
+    public final Map<String, String> failures;
+    /**
+     * Peers that did not answer before the deadline, including those never contacted.
+     */
+    public final Set<String> timedOut;
+    /**
+     * From the start of the broadcast to the last answer or the deadline.
+     */
+    public final long elapsedNanos;
+
+    PingReport(Map<String, Long> rttNanos, Map<String, String> failures, Set<String> timedOut, long elapsedNanos) {
+        this.rttNanos = Collections.unmodifiableMap(new TreeMap<String, Long>(rttNanos));
+        this.failures = Collections.unmodifiableMap(new TreeMap<String, String>(failures));
+        this.timedOut = Collections.unmodifiableSet(new TreeSet<String>(timedOut));
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public int successes() {
+        return rttNanos.size();
+    }
+
+    public int total() {
+        return rttNanos.size() + failures.size() + timedOut.size();
+    }
+
+    @Override
+    public String toString() {
+        return rttNanos.size() + " answered, " + failures.size() + " failed, " + timedOut.size()
+                + " timed out in " + elapsedNanos / 1000000 + "ms";
+    }
+}